@@ -0,0 +1,74 @@
+package moe.seikimo.wirelessredstone;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Consistent hash ring of gateway nodes.
+ * Each node is placed at many points, so removing a node only moves its own share of keys.
+ *
+ * @param <T> The type of the nodes.
+ */
+final class HashRing<T> {
+    /** The amount of points per node. */
+    private static final int POINTS = 128;
+
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+
+    /**
+     * @param nodes The nodes.
+     * @param name The stable name of a node, which decides its points.
+     */
+    HashRing(List<T> nodes, Function<T, String> name) {
+        for (var node : nodes) {
+            for (var point = 0; point < POINTS; point++)
+                this.ring.put(hash(name.apply(node) + "#" + point), node);
+        }
+    }
+
+    /**
+     * Finds the node for a key.
+     * Walks clockwise from the key's point to the first node which is usable.
+     *
+     * @param key The key.
+     * @param usable Whether a node can be picked.
+     * @return The node, or null if none are usable.
+     */
+    T pick(UUID key, Predicate<T> usable) {
+        if (this.ring.isEmpty()) return null;
+
+        var hash = mix(key.getMostSignificantBits() ^ mix(key.getLeastSignificantBits()));
+        for (var node : this.ring.tailMap(hash).values())
+            if (usable.test(node)) return node;
+        for (var node : this.ring.headMap(hash).values())
+            if (usable.test(node)) return node;
+
+        return null;
+    }
+
+    /**
+     * 64-bit FNV-1a of a string, mixed.
+     */
+    private static long hash(String value) {
+        var hash = 0xCBF29CE484222325L;
+        for (var b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+
+        return mix(hash);
+    }
+
+    /**
+     * The finalizer of SplitMix64.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
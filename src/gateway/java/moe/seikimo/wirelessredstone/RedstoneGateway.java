@@ -0,0 +1,474 @@
+package moe.seikimo.wirelessredstone;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import lombok.Getter;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes endpoint requests to the server which hosts the endpoint.
+ * Runs on its own, without Minecraft, in front of several servers running the mod.
+ *
+ * Each node publishes its endpoints on 'GET /registry', which the gateway polls for changes;
+ * the gateway's address must be in each node's 'limits.trustedProxies'.
+ * Requests for known endpoints are forwarded to their node over keep-alive connections.
+ * Endpoints which no node has published yet are placed on a consistent hash ring,
+ * so requests for a new endpoint keep reaching the same node.
+ * While a node is down its endpoints get fast 503s; once it is back it is fully re-read.
+ *
+ * Options: --host, --port, --nodes (comma-separated base URLs), --poll (milliseconds),
+ * --timeout (milliseconds), --failures (failed polls before a node is marked down).
+ */
+public final class RedstoneGateway {
+    @Getter private static final Logger logger
+            = LoggerFactory.getLogger("Redstone Gateway");
+
+    private static final MediaType TEXT = MediaType.get("text/plain; charset=utf-8");
+
+    public static void main(String[] args) {
+        var options = new HashMap<String, String>();
+        for (var i = 0; i + 1 < args.length; i += 2)
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+
+        var nodes = Arrays.stream(options.getOrDefault("nodes", "http://127.0.0.1:25564").split(","))
+                .map(String::trim).filter(node -> !node.isEmpty()).toList();
+        var gateway = new RedstoneGateway(nodes,
+                Long.parseLong(options.getOrDefault("poll", "1000")),
+                Long.parseLong(options.getOrDefault("timeout", "5000")),
+                Integer.parseInt(options.getOrDefault("failures", "3")));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(gateway::stop));
+        gateway.start(options.getOrDefault("host", "0.0.0.0"),
+                Integer.parseInt(options.getOrDefault("port", "25565")));
+    }
+
+    private final Javalin javalin = Javalin.create();
+    private final OkHttpClient client;
+    private final ScheduledExecutorService syncer;
+    private final long pollInterval;
+    private final int maxFailures;
+
+    @Getter private final List<Node> nodes;
+    private final HashRing<Node> ring;
+    /** The node which published each endpoint. */
+    private final Map<UUID, Node> owners = new ConcurrentHashMap<>();
+
+    /**
+     * @param nodes The base URLs of the nodes.
+     * @param pollInterval How often each node's registry is polled, in milliseconds.
+     * @param timeout The timeout of forwarded requests, in milliseconds.
+     * @param maxFailures The failed polls before a node is marked down.
+     */
+    public RedstoneGateway(List<String> nodes, long pollInterval, long timeout, int maxFailures) {
+        this.pollInterval = pollInterval;
+        this.maxFailures = maxFailures;
+
+        this.nodes = nodes.stream().map(url -> new Node(HttpUrl.get(url))).toList();
+        this.ring = new HashRing<>(this.nodes, node -> node.url.toString());
+
+        // Keep connections to every node open.
+        var pool = new ConnectionPool(Math.max(5, nodes.size() * 8), 5, TimeUnit.MINUTES);
+        this.client = new OkHttpClient.Builder()
+                .connectionPool(pool)
+                .connectTimeout(Math.min(timeout, 1000), TimeUnit.MILLISECONDS)
+                .callTimeout(timeout, TimeUnit.MILLISECONDS)
+                .build();
+        this.client.dispatcher().setMaxRequestsPerHost(256);
+        this.client.dispatcher().setMaxRequests(256 * Math.max(1, nodes.size()));
+
+        this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "Gateway Sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts polling the nodes and serving requests.
+     *
+     * @param host The address to listen on.
+     * @param port The port to listen on, or 0 for any free port.
+     * @return The gateway.
+     */
+    public RedstoneGateway start(String host, int port) {
+        var app = this.javalin;
+        app.get("/nodes", this::nodesRoute);
+        app.post("/batch", this::batchRoute);
+        app.get("/{id}", this::forwardRoute);
+        app.get("/{id}/state", this::forwardRoute);
+        app.get("/{id}/tick", this::forwardRoute);
+        app.get("/{id}/pulse/{ticks}", this::forwardRoute);
+        app.get("/{id}/schedule/{state}/{tick}", this::forwardRoute);
+        app.delete("/{id}/timer/{timer}", this::forwardRoute);
+        app.start(host, port);
+
+        this.syncer.scheduleWithFixedDelay(this::sync, 0,
+                this.pollInterval, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * @return The port the gateway listens on.
+     */
+    public int port() {
+        return this.javalin.port();
+    }
+
+    /**
+     * Stops serving requests and polling.
+     */
+    public void stop() {
+        this.syncer.shutdownNow();
+        this.javalin.close();
+        this.client.dispatcher().executorService().shutdown();
+        this.client.connectionPool().evictAll();
+    }
+
+    /**
+     * Finds the node for an endpoint.
+     *
+     * @param uuid The UUID of the endpoint.
+     * @return The node, or null if the endpoint's node is down.
+     */
+    public Node route(UUID uuid) {
+        var owner = this.owners.get(uuid);
+        if (owner != null) return owner.up ? owner : null;
+
+        // Place unknown endpoints on the ring.
+        return this.ring.pick(uuid, node -> node.up);
+    }
+
+    /**
+     * Polls the registry of every node.
+     * Runs on the sync thread.
+     */
+    public void sync() {
+        for (var node : this.nodes) {
+            if (!node.syncing.compareAndSet(false, true)) continue;
+
+            var url = node.url.newBuilder()
+                    .addPathSegment("registry")
+                    .addQueryParameter("since", Long.toString(node.version));
+            if (node.epoch != null) url.addQueryParameter("epoch", node.epoch);
+
+            this.client.newCall(new Request.Builder().url(url.build()).build()).enqueue(new Callback() {
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (response) {
+                        if (!response.isSuccessful())
+                            throw new IOException("Unexpected status " + response.code() + ".");
+
+                        RedstoneGateway.this.apply(node, response.header("X-Registry-Epoch"),
+                                Long.parseLong(response.header("X-Registry-Version", "0")),
+                                Boolean.parseBoolean(response.header("X-Registry-Full")),
+                                response.body().string());
+                    } catch (IOException | RuntimeException exception) {
+                        RedstoneGateway.this.failed(node, exception);
+                    } finally {
+                        node.syncing.set(false);
+                    }
+                }
+
+                @Override
+                public void onFailure(Call call, IOException exception) {
+                    RedstoneGateway.this.failed(node, exception);
+                    node.syncing.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Applies registry changes read from a node.
+     *
+     * @param node The node.
+     * @param epoch The epoch of the node's current run.
+     * @param version The version after the changes.
+     * @param full Whether the body lists every endpoint of the node.
+     * @param body The changes, one per line.
+     */
+    private void apply(Node node, String epoch, long version, boolean full, String body) {
+        Set<UUID> listed = full ? new HashSet<>() : null;
+
+        for (var line : body.split("\n")) {
+            if (line.length() < 2) continue;
+
+            var uuid = UUID.fromString(line.substring(1));
+            if (line.charAt(0) == '+') {
+                node.endpoints.add(uuid);
+                this.owners.put(uuid, node);
+                if (listed != null) listed.add(uuid);
+            } else {
+                node.endpoints.remove(uuid);
+                this.owners.remove(uuid, node);
+            }
+        }
+
+        // Forget endpoints missing from a full listing.
+        if (listed != null) {
+            for (var uuid : List.copyOf(node.endpoints)) {
+                if (listed.contains(uuid)) continue;
+                node.endpoints.remove(uuid);
+                this.owners.remove(uuid, node);
+            }
+        }
+
+        if (node.epoch != null && !node.epoch.equals(epoch))
+            RedstoneGateway.getLogger().info("Node {} restarted.", node.url);
+        if (!node.up)
+            RedstoneGateway.getLogger().info("Node {} is up with {} endpoints.", node.url, node.endpoints.size());
+
+        node.epoch = epoch;
+        node.version = version;
+        node.failures.set(0);
+        node.up = true;
+    }
+
+    /**
+     * Records a failed request to a node.
+     * The node is marked down after too many failures in a row.
+     */
+    private void failed(Node node, Exception exception) {
+        if (node.failures.incrementAndGet() < this.maxFailures || !node.up) return;
+
+        node.up = false;
+        RedstoneGateway.getLogger().warn("Node {} is down: {}", node.url, exception.getMessage());
+    }
+
+    /**
+     * Lists the nodes.
+     *
+     * @route GET /nodes
+     * @param ctx The context.
+     */
+    private void nodesRoute(Context ctx) {
+        var body = new StringBuilder();
+        for (var node : this.nodes) {
+            body.append(node.url).append(' ')
+                    .append(node.up ? "up" : "down").append(' ')
+                    .append(node.endpoints.size()).append('\n');
+        }
+
+        ctx.result(body.toString());
+    }
+
+    /**
+     * Forwards an endpoint route to the node of the endpoint.
+     *
+     * @route GET /{id}, /{id}/state, /{id}/tick, /{id}/pulse/{ticks}, /{id}/schedule/{state}/{tick}
+     * @route DELETE /{id}/timer/{timer}
+     * @param ctx The context.
+     */
+    private void forwardRoute(Context ctx) {
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(ctx.pathParam("id"));
+        } catch (IllegalArgumentException ignored) {
+            ctx.status(404).result("Invalid UUID.");
+            return;
+        }
+
+        var node = this.route(uuid);
+        if (node == null) {
+            ctx.header(Header.RETRY_AFTER, "1");
+            ctx.status(503).result("Node unavailable.");
+            return;
+        }
+
+        var url = node.url.newBuilder().encodedPath(ctx.path()).encodedQuery(ctx.queryString()).build();
+        var request = this.forwarded(ctx).url(url)
+                .method(ctx.method().name(), null).build();
+        ctx.future(() -> this.call(node, request).thenAccept(response -> {
+            if (response == null) {
+                ctx.header(Header.RETRY_AFTER, "1");
+                ctx.status(503).result("Node unavailable.");
+                return;
+            }
+
+            response.headers().forEach(ctx::header);
+            ctx.status(response.status()).result(response.body());
+        }));
+    }
+
+    /**
+     * Splits a batch by node, forwards each part and merges the results in order.
+     * Lines for nodes which are down are answered with 'unavailable'.
+     *
+     * @route POST /batch
+     * @param ctx The context.
+     */
+    private void batchRoute(Context ctx) {
+        var lines = ctx.body().split("\n");
+        var parts = new LinkedHashMap<Node, StringBuilder>();
+        var assigned = new Node[lines.length];
+
+        for (var i = 0; i < lines.length; i++) {
+            var line = lines[i].trim();
+            if (line.isEmpty()) continue;
+
+            UUID uuid;
+            try {
+                uuid = UUID.fromString(line.split(" ", 2)[0]);
+            } catch (IllegalArgumentException ignored) {
+                ctx.status(400).result("Invalid UUID on line " + (i + 1) + ".");
+                return;
+            }
+
+            var node = this.route(uuid);
+            if (node == null) continue;
+            assigned[i] = node;
+            parts.computeIfAbsent(node, key -> new StringBuilder()).append(line).append('\n');
+        }
+
+        // Send every part at once.
+        var results = new HashMap<Node, CompletableFuture<Forwarded>>();
+        for (var part : parts.entrySet()) {
+            var node = part.getKey();
+            var request = this.forwarded(ctx)
+                    .url(node.url.newBuilder().addPathSegment("batch").build())
+                    .post(RequestBody.create(part.getValue().toString(), TEXT))
+                    .build();
+            results.put(node, this.call(node, request));
+        }
+
+        ctx.future(() -> CompletableFuture.allOf(results.values().toArray(CompletableFuture[]::new))
+                .thenRun(() -> ctx.result(this.merge(lines, assigned, results))));
+    }
+
+    /**
+     * Merges the results of a split batch, in the order of the original lines.
+     */
+    private String merge(String[] lines, Node[] assigned, Map<Node, CompletableFuture<Forwarded>> results) {
+        var answers = new HashMap<Node, String[]>();
+        for (var result : results.entrySet()) {
+            var response = result.getValue().join();
+            answers.put(result.getKey(), response != null && response.status() == 200 ?
+                    new String(response.body()).split("\n") : null);
+        }
+
+        var body = new StringBuilder(lines.length * 46);
+        var read = new HashMap<Node, Integer>();
+        for (var i = 0; i < lines.length; i++) {
+            var line = lines[i].trim();
+            if (line.isEmpty()) continue;
+
+            var uuid = line.split(" ", 2)[0];
+            var node = assigned[i];
+            var answer = node == null ? null : answers.get(node);
+            if (answer == null) {
+                body.append(uuid).append(node == null ? " unavailable\n" : " error\n");
+                continue;
+            }
+
+            var index = read.merge(node, 1, Integer::sum) - 1;
+            body.append(index < answer.length ? answer[index] : uuid + " error").append('\n');
+        }
+
+        return body.toString();
+    }
+
+    /**
+     * @param ctx The context of the incoming request.
+     * @return A request builder which carries the client's address.
+     */
+    private Request.Builder forwarded(Context ctx) {
+        var forwarded = ctx.header("X-Forwarded-For");
+        return new Request.Builder().header("X-Forwarded-For",
+                forwarded == null ? ctx.ip() : forwarded + ", " + ctx.ip());
+    }
+
+    /**
+     * Sends a request to a node.
+     *
+     * @param node The node.
+     * @param request The request.
+     * @return The response, or null if the node could not be reached.
+     */
+    private CompletableFuture<Forwarded> call(Node node, Request request) {
+        var future = new CompletableFuture<Forwarded>();
+        this.client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    var headers = new HashMap<String, String>();
+                    for (var name : List.of(Header.CONTENT_TYPE, Header.RETRY_AFTER, Header.ETAG)) {
+                        var value = response.header(name);
+                        if (value != null) headers.put(name, value);
+                    }
+
+                    future.complete(new Forwarded(response.code(), headers, response.body().bytes()));
+                } catch (IOException exception) {
+                    this.onFailure(call, exception);
+                }
+            }
+
+            @Override
+            public void onFailure(Call call, IOException exception) {
+                RedstoneGateway.this.failed(node, exception);
+                future.complete(null);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * A server running the mod.
+     */
+    public static final class Node {
+        @Getter private final HttpUrl url;
+        /** The endpoints this node published. Only changed by the sync callbacks. */
+        private final Set<UUID> endpoints = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean syncing = new AtomicBoolean();
+        private final AtomicInteger failures = new AtomicInteger();
+
+        /** Whether the node answered its last polls. */
+        @Getter private volatile boolean up = false;
+        private volatile String epoch = null;
+        private volatile long version = -1;
+
+        Node(HttpUrl url) {
+            this.url = url;
+        }
+
+        /**
+         * @return The amount of endpoints the node published.
+         */
+        public int size() {
+            return this.endpoints.size();
+        }
+    }
+
+    /**
+     * A response from a node.
+     */
+    private record Forwarded(int status, Map<String, String> headers, byte[] body) {}
+}
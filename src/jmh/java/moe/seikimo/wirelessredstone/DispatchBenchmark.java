@@ -0,0 +1,94 @@
+package moe.seikimo.wirelessredstone;
+
+import com.sun.net.httpserver.HttpServer;
+import net.minecraft.core.BlockPos;
+import okhttp3.HttpUrl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waypoint requests sent to a local stub server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    private HttpServer server;
+    private HttpUrl url;
+    private RedstoneWaypoint waypoint;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws IOException {
+        var level = StandIns.level("overworld");
+        StandIns.initialize(level);
+
+        // Answer every request with an empty 200.
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        this.server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        this.server.setExecutor(Executors.newFixedThreadPool(4, runnable -> {
+            var thread = new Thread(runnable, "Stub Server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        this.server.start();
+
+        this.url = HttpUrl.parse("http://127.0.0.1:" + this.server.getAddress().getPort() + "/hook");
+        this.waypoint = new RedstoneWaypoint(UUID.randomUUID(), UUID.randomUUID(),
+                this.url.toString(), level, new BlockPos(0, 64, 0));
+        this.body = ("[{\"waypoint\":\"" + this.waypoint.getUuid()
+                + "\",\"state\":true,\"tick\":1,\"timestamp\":1}]").getBytes();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.server.stop(0);
+    }
+
+    /**
+     * One blocking GET, as sent by a dispatcher thread.
+     */
+    @Benchmark
+    public boolean deliverGet() {
+        return WaypointDispatcher.deliver(this.url, null);
+    }
+
+    /**
+     * One blocking POST of a batch.
+     */
+    @Benchmark
+    public boolean deliverBatch() {
+        return WaypointDispatcher.deliver(this.url, this.body);
+    }
+
+    /**
+     * Queueing a request from the server thread.
+     */
+    @Benchmark
+    public boolean submit() {
+        return WirelessRedstone.getDispatcher().submit(this.waypoint, true);
+    }
+}
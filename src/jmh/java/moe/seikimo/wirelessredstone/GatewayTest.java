@@ -0,0 +1,232 @@
+package moe.seikimo.wirelessredstone;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs the gateway against several in-process nodes.
+ * Each node has its own registry and serves the registry feed like the mod does;
+ * its endpoint routes answer with the node's name, so routing can be checked.
+ * Covers routing, new placements, moved endpoints, batches, and a node restarting.
+ */
+public final class GatewayTest {
+    private static final int NODES = 3;
+    private static final int ENDPOINTS = 100;
+
+    private final OkHttpClient client = new OkHttpClient();
+    private final List<Node> nodes = new ArrayList<>();
+    private RedstoneGateway gateway;
+    private String base;
+    private int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        var test = new GatewayTest();
+        try {
+            test.run();
+        } finally {
+            test.gateway.stop();
+            test.nodes.forEach(Node::stop);
+        }
+
+        System.out.println(test.failures == 0 ? "All checks passed." : test.failures + " checks failed.");
+        System.exit(test.failures == 0 ? 0 : 1);
+    }
+
+    private void run() throws Exception {
+        var level = StandIns.level("overworld");
+        for (var i = 0; i < NODES; i++) {
+            var node = new Node("node-" + i, level, 0).start();
+            for (var j = 0; j < ENDPOINTS; j++) node.add(UUID.randomUUID());
+            this.nodes.add(node);
+        }
+
+        this.gateway = new RedstoneGateway(this.nodes.stream().map(Node::url).toList(), 50, 2000, 2)
+                .start("127.0.0.1", 0);
+        this.base = "http://127.0.0.1:" + this.gateway.port() + "/";
+        this.await("all nodes are up", () -> this.gateway.getNodes().stream()
+                .allMatch(node -> node.isUp() && node.size() == ENDPOINTS));
+
+        // Known endpoints reach their node.
+        var routed = 0;
+        for (var node : this.nodes)
+            for (var uuid : node.endpoints().subList(0, 20))
+                if (this.get(uuid.toString()).equals(node.name + " toggled")) routed++;
+        this.check("known endpoints reach their node", routed == NODES * 20);
+
+        // Unknown endpoints stay on one node, which keeps them once placed there.
+        var placed = UUID.randomUUID();
+        var first = this.get(placed.toString());
+        var stable = true;
+        for (var i = 0; i < 10; i++) stable &= this.get(placed.toString()).equals(first);
+        this.check("unknown endpoints hash to one node", stable && first.endsWith("missing"));
+
+        var home = this.nodes.stream().filter(node -> first.startsWith(node.name + " ")).findFirst().orElseThrow();
+        home.add(placed);
+        this.await("new placement is published", () -> this.get(placed.toString()).equals(home.name + " toggled"));
+
+        // Moved endpoints follow the registry.
+        var moved = this.nodes.get(1).endpoints().get(0);
+        this.nodes.get(1).remove(moved);
+        this.nodes.get(2).add(moved);
+        this.await("moved endpoints follow the registry",
+                () -> this.get(moved.toString()).equals("node-2 toggled"));
+
+        // Batches are split by node and merged in order.
+        var batch = List.of(this.nodes.get(0).endpoints().get(1), this.nodes.get(2).endpoints().get(1),
+                this.nodes.get(1).endpoints().get(1), this.nodes.get(0).endpoints().get(2));
+        var body = new StringBuilder();
+        batch.forEach(uuid -> body.append(uuid).append(" toggle\n"));
+        var expected = batch.get(0) + " node-0\n" + batch.get(1) + " node-2\n"
+                + batch.get(2) + " node-1\n" + batch.get(3) + " node-0\n";
+        this.check("batches are split and merged in order", this.post("batch", body.toString()).equals(expected));
+
+        // A node going down fails fast, and is read again after restarting.
+        var restarting = this.nodes.get(0);
+        var kept = restarting.endpoints().get(5);
+        var dropped = restarting.endpoints().get(6);
+        restarting.stop();
+        this.await("stopped node is marked down", () -> !this.gateway.getNodes().get(0).isUp());
+
+        var started = System.nanoTime();
+        this.check("endpoints of a down node get 503", this.status(kept.toString()) == 503
+                && System.nanoTime() - started < 500_000_000L);
+
+        var restarted = new Node("node-0", level, restarting.port);
+        restarted.add(kept);
+        restarted.start();
+        this.nodes.set(0, restarted);
+        this.await("restarted node is read again", () -> this.gateway.getNodes().get(0).isUp()
+                && this.gateway.getNodes().get(0).size() == 1);
+        this.check("restarted node serves its endpoints", this.get(kept.toString()).equals("node-0 toggled"));
+        this.check("endpoints gone after a restart are forgotten", this.get(dropped.toString()).endsWith("missing"));
+    }
+
+    private void check(String name, boolean passed) {
+        System.out.println((passed ? "PASS " : "FAIL ") + name);
+        if (!passed) this.failures++;
+    }
+
+    private void await(String name, BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        this.check(name, condition.getAsBoolean());
+    }
+
+    private String get(String path) {
+        try (var response = this.client.newCall(new Request.Builder().url(this.base + path).build()).execute()) {
+            return response.body().string();
+        } catch (IOException exception) {
+            return "error";
+        }
+    }
+
+    private int status(String path) {
+        try (var response = this.client.newCall(new Request.Builder().url(this.base + path).build()).execute()) {
+            return response.code();
+        } catch (IOException exception) {
+            return -1;
+        }
+    }
+
+    private String post(String path, String body) {
+        var request = new Request.Builder().url(this.base + path)
+                .post(RequestBody.create(body, MediaType.get("text/plain"))).build();
+        try (var response = this.client.newCall(request).execute()) {
+            return response.body().string();
+        } catch (IOException exception) {
+            return "error";
+        }
+    }
+
+    /**
+     * A server running the mod, with only the routes the gateway uses.
+     */
+    private static final class Node {
+        private final String name;
+        private final ServerLevel level;
+        private final ComponentRegistry registry = new ComponentRegistry();
+        private final List<RedstoneEndpoint> endpoints = new ArrayList<>();
+        private Javalin javalin;
+        private int port;
+
+        Node(String name, ServerLevel level, int port) {
+            this.name = name;
+            this.level = level;
+            this.port = port;
+        }
+
+        Node start() {
+            this.javalin = Javalin.create()
+                    .get("/registry", this::registry)
+                    .post("/batch", this::batch)
+                    .get("/{id}", this::toggle)
+                    .start("127.0.0.1", this.port);
+            this.port = this.javalin.port();
+            return this;
+        }
+
+        void stop() {
+            this.javalin.stop();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + this.port;
+        }
+
+        void add(UUID uuid) {
+            var endpoint = new RedstoneEndpoint(uuid, UUID.randomUUID(), this.level,
+                    new BlockPos(this.endpoints.size(), 64, 0));
+            this.endpoints.add(endpoint);
+            this.registry.add(endpoint);
+        }
+
+        void remove(UUID uuid) {
+            var endpoint = this.registry.getEndpoint(uuid);
+            this.endpoints.remove(endpoint);
+            this.registry.remove(endpoint);
+        }
+
+        List<UUID> endpoints() {
+            return this.endpoints.stream().map(RedstoneEndpoint::getUuid).toList();
+        }
+
+        private void registry(Context ctx) {
+            var since = ctx.queryParam("since");
+            var changes = this.registry.getFeed().read(ctx.queryParam("epoch"),
+                    since == null ? -1 : Long.parseLong(since));
+            ctx.header("X-Registry-Epoch", changes.epoch())
+                    .header("X-Registry-Version", Long.toString(changes.version()))
+                    .header("X-Registry-Full", Boolean.toString(changes.full()))
+                    .result(changes.body());
+        }
+
+        private void toggle(Context ctx) {
+            var known = this.registry.getEndpoint(UUID.fromString(ctx.pathParam("id"))) != null;
+            ctx.status(known ? 200 : 404).result(this.name + (known ? " toggled" : " missing"));
+        }
+
+        private void batch(Context ctx) {
+            var body = new StringBuilder();
+            for (var line : ctx.body().split("\n")) {
+                var uuid = UUID.fromString(line.split(" ")[0]);
+                body.append(uuid).append(' ')
+                        .append(this.registry.getEndpoint(uuid) != null ? this.name : "missing").append('\n');
+            }
+
+            ctx.result(body.toString());
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package moe.seikimo.wirelessredstone;
+
+import com.sun.net.httpserver.HttpServer;
+import net.minecraft.core.BlockPos;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load test of the HTTP control plane.
+ * Starts the mod's routes against a simulated world ticking at 20 TPS,
+ * sends concurrent toggles over loopback HTTP and sends waypoint traffic to a local sink.
+ *
+ * Options: --clients, --duration (seconds), --endpoints, --waypoints,
+ * --invocations (waypoint invocations per tick), --warmup (seconds).
+ */
+public final class LoadTest {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final int clients, duration, warmup, endpointCount, waypointCount, invocations;
+
+    private final AtomicLong sunk = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final List<RedstoneEndpoint> endpoints = new ArrayList<>();
+    private final List<RedstoneWaypoint> waypoints = new ArrayList<>();
+
+    private volatile boolean running = true;
+    private volatile boolean measuring = false;
+
+    private LoadTest(Map<String, String> options) {
+        this.clients = Integer.parseInt(options.getOrDefault("clients", "64"));
+        this.duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        this.warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        this.endpointCount = Integer.parseInt(options.getOrDefault("endpoints", "1000"));
+        this.waypointCount = Integer.parseInt(options.getOrDefault("waypoints", "100"));
+        this.invocations = Integer.parseInt(options.getOrDefault("invocations", "10"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        for (var i = 0; i + 1 < args.length; i += 2)
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+
+        new LoadTest(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        var level = StandIns.level("overworld");
+        StandIns.initialize(level);
+
+        // Count waypoint requests in a local sink.
+        var sink = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        sink.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            this.sunk.incrementAndGet();
+        });
+        sink.setExecutor(Executors.newFixedThreadPool(8, LoadTest::daemon));
+        sink.start();
+        var hook = "http://127.0.0.1:" + sink.getAddress().getPort() + "/hook";
+
+        // Create the components.
+        var player = StandIns.player();
+        for (var i = 0; i < this.endpointCount; i++) {
+            var endpoint = new RedstoneEndpoint(UUID.randomUUID(), UUID.randomUUID(),
+                    level, new BlockPos(i % 1024, 64, i / 1024));
+            endpoint.save();
+            endpoint.load(player);
+            this.endpoints.add(endpoint);
+        }
+        for (var i = 0; i < this.waypointCount; i++) {
+            var waypoint = new RedstoneWaypoint(UUID.randomUUID(), UUID.randomUUID(),
+                    hook, level, new BlockPos(i % 1024, 70, i / 1024));
+            waypoint.save();
+            this.waypoints.add(waypoint);
+        }
+
+        // Start the HTTP server on a free port.
+        WirelessRedstone.getInstance().applyRoutes();
+        var javalin = WirelessRedstone.getJavalin().start("127.0.0.1", 0);
+        var base = "http://127.0.0.1:" + javalin.port() + "/";
+
+        // Run the simulated server thread.
+        var server = new Thread(this::tick, "Server thread");
+        server.start();
+
+        // Start the clients.
+        var client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(this.clients, 5, TimeUnit.MINUTES))
+                .build();
+        var latencies = new long[this.clients][];
+        var counts = new int[this.clients];
+        var done = new CountDownLatch(this.clients);
+        for (var i = 0; i < this.clients; i++) {
+            var index = i;
+            new Thread(() -> {
+                try {
+                    this.client(client, base, index, latencies, counts);
+                } finally {
+                    done.countDown();
+                }
+            }, "Client #" + i).start();
+        }
+
+        System.out.printf("Warming up for %d seconds with %d clients...%n", this.warmup, this.clients);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.warmup));
+
+        var dispatcher = WirelessRedstone.getDispatcher();
+        var sunkBefore = this.sunk.get();
+        var failedBefore = dispatcher.getFailed().get();
+        var droppedBefore = dispatcher.getDropped().get();
+        this.measuring = true;
+        var started = System.nanoTime();
+
+        System.out.printf("Measuring for %d seconds...%n", this.duration);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.duration));
+
+        this.measuring = false;
+        var elapsed = (System.nanoTime() - started) / 1e9;
+        this.running = false;
+        done.await();
+        server.join();
+
+        // Merge the samples of all clients.
+        var total = Arrays.stream(counts).sum();
+        var samples = new long[total];
+        var at = 0;
+        for (var i = 0; i < this.clients; i++) {
+            System.arraycopy(latencies[i], 0, samples, at, counts[i]);
+            at += counts[i];
+        }
+        Arrays.sort(samples);
+
+        System.out.printf("%nToggles:   %d in %.1fs (%.0f/s), %d errors%n",
+                total, elapsed, total / elapsed, this.errors.get());
+        System.out.printf("Latency:   p50 %s  p99 %s  p999 %s  max %s%n",
+                millis(samples, 0.5), millis(samples, 0.99), millis(samples, 0.999),
+                millis(samples, 1));
+        System.out.printf("Waypoints: %d delivered (%.0f/s), %d failed, %d dropped%n",
+                this.sunk.get() - sunkBefore, (this.sunk.get() - sunkBefore) / elapsed,
+                dispatcher.getFailed().get() - failedBefore,
+                dispatcher.getDropped().get() - droppedBefore);
+
+        javalin.stop();
+        sink.stop(0);
+    }
+
+    /**
+     * Runs ticks at 20 TPS, invoking some waypoints every tick.
+     */
+    private void tick() {
+        var next = System.nanoTime();
+        var lit = false;
+        var waypoint = 0;
+
+        while (this.running) {
+            WirelessRedstone.getInstance().onServerTick();
+
+            lit = !lit;
+            for (var i = 0; i < this.invocations && !this.waypoints.isEmpty(); i++)
+                this.waypoints.get(waypoint++ % this.waypoints.size()).invoke(lit);
+
+            next += TICK_NANOS;
+            var wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends toggles in a closed loop, recording latencies while measuring.
+     */
+    private void client(OkHttpClient client, String base, int index, long[][] latencies, int[] counts) {
+        var samples = new long[1 << 16];
+        var count = 0;
+        var endpoint = index;
+
+        while (this.running) {
+            var uuid = this.endpoints.get(endpoint++ % this.endpoints.size()).getUuid();
+            var request = new Request.Builder().url(base + uuid).build();
+
+            var started = System.nanoTime();
+            var failed = false;
+            try (var response = client.newCall(request).execute()) {
+                failed = !response.isSuccessful();
+            } catch (IOException ignored) {
+                failed = true;
+            }
+
+            if (!this.measuring) continue;
+            if (failed) {
+                this.errors.incrementAndGet();
+                continue;
+            }
+
+            if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+            samples[count++] = System.nanoTime() - started;
+        }
+
+        latencies[index] = samples;
+        counts[index] = count;
+    }
+
+    static String millis(long[] samples, double quantile) {
+        if (samples.length == 0) return "-";
+
+        var index = (int) Math.min(samples.length - 1, Math.ceil(samples.length * quantile) - 1);
+        return String.format("%.2fms", samples[Math.max(0, index)] / 1e6);
+    }
+
+    private static Thread daemon(Runnable runnable) {
+        var thread = new Thread(runnable, "Waypoint Sink");
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,90 @@
+package moe.seikimo.wirelessredstone;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.ServerLevel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry lookups by UUID and by block position,
+ * and the waypoint filter checked on every lamp update.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+    private static final int LOOKUPS = 1024;
+
+    @Param({"1000", "100000"})
+    private int components;
+
+    private final ComponentRegistry registry = new ComponentRegistry();
+    private final UUID[] uuids = new UUID[LOOKUPS];
+    private final BlockPos[] positions = new BlockPos[LOOKUPS];
+    private final BlockPos[] lamps = new BlockPos[LOOKUPS];
+    private ServerLevel level;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        this.level = StandIns.level("overworld");
+        StandIns.initialize(this.level);
+
+        var random = new Random(42);
+        var endpoints = new RedstoneEndpoint[this.components];
+        for (var i = 0; i < this.components; i++) {
+            endpoints[i] = new RedstoneEndpoint(UUID.randomUUID(), UUID.randomUUID(), this.level,
+                    new BlockPos(random.nextInt(60000) - 30000, random.nextInt(384) - 64,
+                            random.nextInt(60000) - 30000));
+            this.registry.add(endpoints[i]);
+            this.registry.add(new RedstoneWaypoint(UUID.randomUUID(), UUID.randomUUID(),
+                    "http://127.0.0.1/", this.level, endpoints[i].getPosition().above()));
+        }
+
+        // Look up existing components in a random order.
+        for (var i = 0; i < LOOKUPS; i++) {
+            var endpoint = endpoints[random.nextInt(this.components)];
+            this.uuids[i] = endpoint.getUuid();
+            this.positions[i] = endpoint.getPosition();
+            this.lamps[i] = new BlockPos(random.nextInt(60000) - 30000, random.nextInt(384) - 64,
+                    random.nextInt(60000) - 30000);
+        }
+    }
+
+    @Benchmark
+    public RedstoneEndpoint byUuid() {
+        return this.registry.getEndpoint(this.uuids[this.next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public RedstoneEndpoint byPosition() {
+        return this.registry.getEndpoint(this.level, this.positions[this.next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public boolean lampFiltered() {
+        return this.registry.mightHaveWaypoint(this.level, this.lamps[this.next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public RedstoneWaypoint lampLookup() {
+        return this.registry.getWaypoint(this.level, this.lamps[this.next++ & (LOOKUPS - 1)]);
+    }
+}
@@ -0,0 +1,80 @@
+package moe.seikimo.wirelessredstone;
+
+import net.minecraft.core.BlockPos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The toggle route, from the handler to the change being applied in a tick.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+    private String id;
+    private RedstoneEndpoint endpoint;
+    private RateLimiter limiter;
+    private HotSpots hotSpots;
+    private RedstoneEndpoint[] others;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        var level = StandIns.level("overworld");
+        StandIns.initialize(level);
+
+        var endpoint = new RedstoneEndpoint(UUID.randomUUID(), UUID.randomUUID(),
+                level, new BlockPos(0, 64, 0));
+        endpoint.save();
+        endpoint.load(StandIns.player());
+
+        this.id = endpoint.getUuid().toString();
+        this.endpoint = endpoint;
+        this.limiter = new RateLimiter(new RedstoneConfig.Limits());
+
+        // More endpoints than the tracker keeps, so most records replace a counter.
+        this.hotSpots = new HotSpots(new RedstoneConfig.Top());
+        this.others = new RedstoneEndpoint[4096];
+        for (var i = 0; i < this.others.length; i++)
+            this.others[i] = new RedstoneEndpoint(UUID.randomUUID(), UUID.randomUUID(),
+                    level, new BlockPos(i, 64, 1));
+    }
+
+    @Benchmark
+    public String toggle() {
+        var ctx = new StandInContext(Map.of("id", this.id));
+        RedstoneRouting.toggleRoute(ctx);
+
+        // Apply the change as the next tick would.
+        WirelessRedstone.getTickQueue().drain();
+        WirelessRedstone.getBlockUpdates().apply();
+        return ctx.getResult();
+    }
+
+    @Benchmark
+    public long limit() {
+        return this.limiter.admit("127.0.0.1") + this.limiter.admit(this.endpoint);
+    }
+
+    @Benchmark
+    public void hotSpots() {
+        this.hotSpots.requested(this.endpoint);
+        this.hotSpots.requested(this.others[this.next++ & (this.others.length - 1)]);
+    }
+}
@@ -0,0 +1,78 @@
+package moe.seikimo.wirelessredstone;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and serialization of components in the old text format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializeBenchmark {
+    private String endpointText, waypointText, level;
+    private RedstoneEndpoint endpoint;
+    private RedstoneWaypoint waypoint;
+
+    @Setup
+    public void setup() throws IOException {
+        var overworld = StandIns.level("overworld");
+        StandIns.initialize(overworld);
+
+        this.endpoint = new RedstoneEndpoint(UUID.randomUUID(), UUID.randomUUID(),
+                overworld, new BlockPos(1024, 64, -2048));
+        this.waypoint = new RedstoneWaypoint(UUID.randomUUID(), UUID.randomUUID(),
+                "http://127.0.0.1:8080/hook", overworld, new BlockPos(-12, 70, 512));
+
+        this.endpointText = this.endpoint.toString();
+        this.waypointText = this.waypoint.toString();
+        this.level = "minecraft:dimension:minecraft:overworld";
+    }
+
+    @Benchmark
+    public BlockPos parsePosition() {
+        return Serialize.parsePosition(this.endpointText, 3);
+    }
+
+    @Benchmark
+    public Level parseLevel() {
+        return Serialize.parseLevel(this.level);
+    }
+
+    @Benchmark
+    public RedstoneEndpoint parseEndpoint() {
+        return RedstoneEndpoint.of(this.endpointText);
+    }
+
+    @Benchmark
+    public RedstoneWaypoint parseWaypoint() {
+        return RedstoneWaypoint.of(this.waypointText);
+    }
+
+    @Benchmark
+    public String endpointToString() {
+        return this.endpoint.toString();
+    }
+
+    @Benchmark
+    public String waypointToString() {
+        return this.waypoint.toString();
+    }
+}
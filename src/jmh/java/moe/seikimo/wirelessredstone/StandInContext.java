@@ -0,0 +1,161 @@
+package moe.seikimo.wirelessredstone;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * A request context which only supports what the routes use.
+ * Routes are called directly, without an HTTP server.
+ */
+final class StandInContext implements Context {
+    private final Map<String, String> pathParams;
+    private final Map<String, List<String>> queryParams = new HashMap<>();
+    private final byte[] body;
+    private String result;
+    private int status = 200;
+    private CompletableFuture<?> future;
+
+    StandInContext(Map<String, String> pathParams) {
+        this(pathParams, null);
+    }
+
+    /**
+     * @param pathParams The path parameters.
+     * @param body The request body, or null.
+     */
+    StandInContext(Map<String, String> pathParams, byte[] body) {
+        this.pathParams = pathParams;
+        this.body = body;
+    }
+
+    /**
+     * Adds a query parameter.
+     *
+     * @return This context.
+     */
+    StandInContext query(String key, String value) {
+        this.queryParams.put(key, List.of(value));
+        return this;
+    }
+
+    /**
+     * @return The result, once the response is complete.
+     */
+    String getResult() {
+        return this.result;
+    }
+
+    int getStatus() {
+        return this.status;
+    }
+
+    /**
+     * @return The future the route responds with, or null if it responded right away.
+     */
+    CompletableFuture<?> getFuture() {
+        return this.future;
+    }
+
+    @Override
+    public String pathParam(String key) {
+        return this.pathParams.get(key);
+    }
+
+    @Override
+    public Map<String, String> pathParamMap() {
+        return this.pathParams;
+    }
+
+    @Override
+    public Map<String, List<String>> queryParamMap() {
+        return this.queryParams;
+    }
+
+    @Override
+    public InputStream bodyInputStream() {
+        return new ByteArrayInputStream(this.body == null ? new byte[0] : this.body);
+    }
+
+    @Override
+    public Context status(int status) {
+        this.status = status;
+        return this;
+    }
+
+    @Override
+    public Context result(String result) {
+        this.result = result;
+        return this;
+    }
+
+    @Override
+    public void future(Supplier<? extends CompletableFuture<?>> future) {
+        this.future = future.get();
+    }
+
+    @Override
+    public String ip() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public HttpServletRequest req() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public HttpServletResponse res() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> T appAttribute(String key) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public HandlerType handlerType() {
+        return HandlerType.GET;
+    }
+
+    @Override
+    public String matchedPath() {
+        return "/{id}";
+    }
+
+    @Override
+    public String endpointHandlerPath() {
+        return "/{id}";
+    }
+
+    @Override
+    public ServletOutputStream outputStream() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Context result(InputStream result) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public InputStream resultInputStream() {
+        return null;
+    }
+
+    @Override
+    public void redirect(String location, io.javalin.http.HttpStatus status) {
+        throw new UnsupportedOperationException();
+    }
+}
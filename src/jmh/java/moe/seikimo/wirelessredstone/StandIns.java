@@ -0,0 +1,179 @@
+package moe.seikimo.wirelessredstone;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.description.modifier.Visibility;
+import net.bytebuddy.dynamic.scaffold.subclass.ConstructorStrategy;
+import net.bytebuddy.implementation.ExceptionMethod;
+import net.bytebuddy.implementation.MethodDelegation;
+import net.minecraft.SharedConstants;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static net.bytebuddy.matcher.ElementMatchers.isAbstract;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Lightweight stand-ins for Minecraft classes.
+ * The classes are subclassed at runtime and created without running their constructors,
+ * so benchmarks run without a Minecraft server.
+ */
+final class StandIns {
+    private static final Objenesis objenesis = new ObjenesisStd(true);
+
+    private static final Class<? extends ServerLevel> LEVEL = new ByteBuddy()
+            .subclass(ServerLevel.class, ConstructorStrategy.Default.NO_CONSTRUCTORS)
+            .defineField("world", World.class, Visibility.PUBLIC)
+            .method(named("dimension").or(named("getBlockState"))
+                    .or(named("setBlock")).or(named("setBlockAndUpdate")))
+            .intercept(MethodDelegation.toField("world"))
+            .make().load(StandIns.class.getClassLoader()).getLoaded();
+
+    private static final Class<? extends MinecraftServer> SERVER = new ByteBuddy()
+            .subclass(MinecraftServer.class, ConstructorStrategy.Default.NO_CONSTRUCTORS)
+            .defineField("server", Server.class, Visibility.PUBLIC)
+            .method(named("getLevel"))
+            .intercept(MethodDelegation.toField("server"))
+            .method(isAbstract())
+            .intercept(ExceptionMethod.throwing(UnsupportedOperationException.class))
+            .make().load(StandIns.class.getClassLoader()).getLoaded();
+
+    private static boolean initialized = false;
+
+    private StandIns() {
+        // Utility class.
+    }
+
+    /**
+     * Sets up the mod as if the server had started.
+     * Data is written to the working directory.
+     * Rate limits are turned off, unless the directory already has a configuration.
+     *
+     * @param levels The levels of the server.
+     */
+    static synchronized void initialize(ServerLevel... levels) throws IOException {
+        // Set the server first, since opening the journal looks up levels.
+        WirelessRedstone.setServer(StandIns.server(levels));
+
+        if (!initialized) {
+            SharedConstants.tryDetectVersion();
+            Bootstrap.bootStrap();
+
+            var config = WirelessRedstone.getConfigFile();
+            if (!config.exists() && (config.getParentFile().isDirectory() || config.getParentFile().mkdirs()))
+                Files.writeString(config.toPath(), "{\"limits\": {\"enabled\": false}}");
+
+            new WirelessRedstone().onInitializeServer();
+            WirelessRedstone.getJournal().open();
+            initialized = true;
+        }
+    }
+
+    /**
+     * Creates a level which keeps its blocks in a map.
+     *
+     * @param name The path of the dimension.
+     * @return The level.
+     */
+    static ServerLevel level(String name) {
+        var level = objenesis.newInstance(LEVEL);
+        StandIns.set(level, "world", new World(ResourceKey.create(Registries.DIMENSION,
+                new ResourceLocation("minecraft", name))));
+        return level;
+    }
+
+    /**
+     * Creates a server with the given levels.
+     *
+     * @param levels The levels.
+     * @return The server.
+     */
+    static MinecraftServer server(ServerLevel... levels) {
+        var server = objenesis.newInstance(SERVER);
+        var standIn = new Server();
+        for (var level : levels)
+            standIn.levels.put(level.dimension(), level);
+
+        StandIns.set(server, "server", standIn);
+        return server;
+    }
+
+    /**
+     * Creates a player.
+     * Only usable as a marker that the owner of an endpoint is online.
+     *
+     * @return The player.
+     */
+    static ServerPlayer player() {
+        return objenesis.newInstance(ServerPlayer.class);
+    }
+
+    private static void set(Object target, String field, Object value) {
+        try {
+            target.getClass().getField(field).set(target, value);
+        } catch (ReflectiveOperationException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    /**
+     * The state behind a level stand-in.
+     */
+    public static final class World {
+        private final ResourceKey<Level> dimension;
+        private final Long2ObjectOpenHashMap<BlockState> blocks = new Long2ObjectOpenHashMap<>();
+
+        World(ResourceKey<Level> dimension) {
+            this.dimension = dimension;
+        }
+
+        public ResourceKey<Level> dimension() {
+            return this.dimension;
+        }
+
+        public BlockState getBlockState(BlockPos position) {
+            var state = this.blocks.get(position.asLong());
+            return state == null ? Blocks.AIR.defaultBlockState() : state;
+        }
+
+        public boolean setBlock(BlockPos position, BlockState state, int flags) {
+            this.blocks.put(position.asLong(), state);
+            return true;
+        }
+
+        public boolean setBlock(BlockPos position, BlockState state, int flags, int depth) {
+            return this.setBlock(position, state, flags);
+        }
+
+        public boolean setBlockAndUpdate(BlockPos position, BlockState state) {
+            return this.setBlock(position, state, 3);
+        }
+    }
+
+    /**
+     * The state behind a server stand-in.
+     */
+    public static final class Server {
+        private final Map<ResourceKey<Level>, ServerLevel> levels = new HashMap<>();
+
+        public ServerLevel getLevel(ResourceKey<Level> dimension) {
+            return this.levels.get(dimension);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package moe.seikimo.wirelessredstone;
+
+import com.sun.net.httpserver.HttpServer;
+import net.minecraft.core.BlockPos;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a trace recorded by the mod against a simulated world.
+ * Requests are fed to the routes and waypoint firings to the waypoints, at the recorded pace,
+ * a multiple of it, or as fast as possible. The server ticks at 20 TPS times the speed,
+ * or continuously when replaying as fast as possible.
+ *
+ * Every endpoint and waypoint named in the trace is created and loaded, each with its own owner;
+ * waypoints send to a local sink. Latency is measured from calling a route until it responds,
+ * which for changes is the tick which applies them.
+ *
+ * Options: --trace (file), --speed (a multiple of the recorded pace, or 'max').
+ */
+public final class TraceReplay {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Path file;
+    private final double speed;
+
+    private final AtomicLong sunk = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private final Map<Integer, Integer> statuses = new HashMap<>();
+    private final ConcurrentLinkedQueue<Firing> firings = new ConcurrentLinkedQueue<>();
+    private final Map<UUID, RedstoneWaypoint> waypoints = new HashMap<>();
+
+    private long[] samples = new long[1 << 16];
+    private int count = 0;
+
+    private volatile boolean running = true;
+
+    private TraceReplay(Map<String, String> options) {
+        if (!options.containsKey("trace"))
+            throw new IllegalArgumentException("Usage: --trace <file> [--speed <multiple|max>]");
+
+        this.file = Path.of(options.get("trace"));
+        var speed = options.getOrDefault("speed", "1");
+        this.speed = speed.equals("max") ? Double.POSITIVE_INFINITY : Double.parseDouble(speed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        for (var i = 0; i + 1 < args.length; i += 2)
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+
+        new TraceReplay(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        var trace = ByteBuffer.wrap(Files.readAllBytes(this.file));
+
+        // Find the components named in the trace.
+        var reader = new TraceRecorder.Reader(trace.duplicate());
+        Set<UUID> endpointIds = new LinkedHashSet<>(), waypointIds = new LinkedHashSet<>();
+        var records = 0;
+        while (reader.next()) {
+            records++;
+            switch (reader.getType()) {
+                case BATCH -> endpointIds.addAll(Arrays.asList(reader.getUuids()));
+                case FIRED -> waypointIds.add(reader.getUuid());
+                default -> endpointIds.add(reader.getUuid());
+            }
+        }
+        var length = reader.getTime() / 1e6;
+        System.out.printf("Trace of %d records over %.1fs, with %d endpoints and %d waypoints.%n",
+                records, length, endpointIds.size(), waypointIds.size());
+
+        var level = StandIns.level("overworld");
+        StandIns.initialize(level);
+
+        // Count waypoint requests in a local sink.
+        var sink = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        sink.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            this.sunk.incrementAndGet();
+        });
+        sink.setExecutor(Executors.newFixedThreadPool(8, runnable -> {
+            var thread = new Thread(runnable, "Waypoint Sink");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        sink.start();
+        var hook = "http://127.0.0.1:" + sink.getAddress().getPort() + "/hook";
+
+        // Create the components.
+        var player = StandIns.player();
+        var index = 0;
+        for (var uuid : endpointIds) {
+            var endpoint = new RedstoneEndpoint(uuid, UUID.randomUUID(),
+                    level, new BlockPos(index % 1024, 64, index++ / 1024));
+            endpoint.save();
+            endpoint.load(player);
+        }
+        index = 0;
+        for (var uuid : waypointIds) {
+            var waypoint = new RedstoneWaypoint(uuid, UUID.randomUUID(),
+                    hook, level, new BlockPos(index % 1024, 70, index++ / 1024));
+            waypoint.save();
+            this.waypoints.put(uuid, waypoint);
+        }
+
+        // Run the simulated server thread.
+        var server = new Thread(this::tick, "Server thread");
+        server.start();
+
+        System.out.printf("Replaying at %s...%n", Double.isInfinite(this.speed) ?
+                "full speed" : this.speed + "x");
+        var dispatcher = WirelessRedstone.getDispatcher();
+        var failedBefore = dispatcher.getFailed().get();
+        var droppedBefore = dispatcher.getDropped().get();
+        var started = System.nanoTime();
+
+        reader = new TraceRecorder.Reader(trace.duplicate());
+        var requests = 0;
+        var fired = 0;
+        while (reader.next()) {
+            // Wait for the time of the record.
+            if (!Double.isInfinite(this.speed)) {
+                var due = started + (long) (reader.getTime() * 1000 / this.speed);
+                for (var wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime())
+                    LockSupport.parkNanos(wait);
+            }
+
+            if (reader.getType() == TraceRecorder.Type.FIRED) {
+                this.firings.add(new Firing(this.waypoints.get(reader.getUuid()), reader.getArgument() != 0));
+                fired++;
+            } else {
+                this.request(reader);
+                requests++;
+            }
+        }
+
+        // Wait for the last changes to be applied.
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while ((this.pending.get() > 0 || !this.firings.isEmpty()) && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        var elapsed = (System.nanoTime() - started) / 1e9;
+        this.running = false;
+        server.join();
+
+        // Wait for the waypoint requests to be sent.
+        dispatcher.shutdown();
+
+        long[] samples;
+        synchronized (this) {
+            samples = Arrays.copyOf(this.samples, this.count);
+        }
+        Arrays.sort(samples);
+
+        System.out.printf("%nReplayed:  %.1fs of traffic in %.1fs (%.1fx)%n", length, elapsed, length / elapsed);
+        System.out.printf("Requests:  %d (%.0f/s), responses %s%n", requests, requests / elapsed, this.statuses);
+        System.out.printf("Latency:   p50 %s  p99 %s  p999 %s  max %s%n",
+                LoadTest.millis(samples, 0.5), LoadTest.millis(samples, 0.99),
+                LoadTest.millis(samples, 0.999), LoadTest.millis(samples, 1));
+        System.out.printf("Waypoints: %d fired (%.0f/s), %d delivered, %d failed, %d dropped%n",
+                fired, fired / elapsed, this.sunk.get(),
+                dispatcher.getFailed().get() - failedBefore,
+                dispatcher.getDropped().get() - droppedBefore);
+
+        sink.stop(0);
+    }
+
+    /**
+     * Calls the route of a recorded request.
+     */
+    private void request(TraceRecorder.Reader reader) {
+        var id = reader.getUuid() == null ? null : reader.getUuid().toString();
+        var ctx = switch (reader.getType()) {
+            case TOGGLE -> new StandInContext(Map.of("id", id));
+            case PULSE -> new StandInContext(Map.of("id", id,
+                    "ticks", Long.toString(reader.getArgument())));
+            case SCHEDULE -> new StandInContext(Map.of("id", id,
+                    "state", reader.getAction().name().toLowerCase(),
+                    "tick", Long.toString(WirelessRedstone.getScheduler().getTick() + reader.getArgument())))
+                    .query("epoch", WirelessRedstone.getScheduler().getEpoch());
+            default -> {
+                var body = new StringBuilder(reader.getUuids().length * 44);
+                for (var i = 0; i < reader.getUuids().length; i++)
+                    body.append(reader.getUuids()[i]).append(' ')
+                            .append(reader.getActions()[i].name().toLowerCase()).append('\n');
+                yield new StandInContext(Map.of(), body.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        };
+
+        var started = System.nanoTime();
+        switch (reader.getType()) {
+            case TOGGLE -> RedstoneRouting.toggleRoute(ctx);
+            case PULSE -> RedstoneRouting.pulseRoute(ctx);
+            case SCHEDULE -> RedstoneRouting.scheduleRoute(ctx);
+            default -> RedstoneRouting.batchRoute(ctx);
+        }
+
+        var future = ctx.getFuture();
+        if (future == null) {
+            this.complete(ctx, started);
+            return;
+        }
+
+        this.pending.incrementAndGet();
+        future.whenComplete((result, exception) -> {
+            this.complete(ctx, started);
+            this.pending.decrementAndGet();
+        });
+    }
+
+    private synchronized void complete(StandInContext ctx, long started) {
+        if (this.count == this.samples.length) this.samples = Arrays.copyOf(this.samples, this.count * 2);
+        this.samples[this.count++] = System.nanoTime() - started;
+        this.statuses.merge(ctx.getStatus(), 1, Integer::sum);
+    }
+
+    /**
+     * Runs ticks, invoking the waypoints which fired since the last tick.
+     */
+    private void tick() {
+        var interval = Double.isInfinite(this.speed) ? 0 : (long) (TICK_NANOS / this.speed);
+        var next = System.nanoTime();
+
+        while (this.running) {
+            Firing firing;
+            while ((firing = this.firings.poll()) != null)
+                firing.waypoint().invoke(firing.lit());
+            WirelessRedstone.getInstance().onServerTick();
+
+            next += interval;
+            for (var wait = next - System.nanoTime(); wait > 0; wait = next - System.nanoTime())
+                LockSupport.parkNanos(wait);
+        }
+    }
+
+    /**
+     * A recorded waypoint firing.
+     */
+    private record Firing(RedstoneWaypoint waypoint, boolean lit) {}
+}
@@ -0,0 +1,114 @@
+package moe.seikimo.wirelessredstone;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * Streaming reader for batch state requests.
+ * Each line holds an endpoint UUID and a target state: 'on', 'off' or 'toggle'.
+ */
+final class BatchReader {
+    private static final long ON = pack("on");
+    private static final long OFF = pack("off");
+    private static final long TOGGLE = pack("toggle");
+
+    private final InputStream input;
+    private final byte[] buffer = new byte[8192];
+    private int position = 0, limit = 0;
+
+    @Getter private int count = 0;
+    @Getter private TickQueue.Action action;
+    private long most, least;
+
+    BatchReader(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Reads the next item.
+     *
+     * @return False if there are no more items.
+     * @throws IllegalArgumentException If the line is malformed.
+     */
+    boolean next() throws IOException {
+        // Skip empty lines.
+        int next;
+        do next = this.read();
+        while (next != -1 && Character.isWhitespace(next));
+        if (next == -1) return false;
+        this.count++;
+
+        // Read the UUID, ignoring dashes.
+        long most = 0, least = 0;
+        var digits = 0;
+        for (; next != -1 && !Character.isWhitespace(next); next = this.read()) {
+            if (next == '-') continue;
+
+            var value = Character.digit(next, 16);
+            if (value == -1 || digits == 32) throw this.malformed();
+
+            if (digits < 16) most = most << 4 | value;
+            else least = least << 4 | value;
+            digits++;
+        }
+        if (digits != 32) throw this.malformed();
+
+        // Skip the separator.
+        while (next == ' ' || next == '\t') next = this.read();
+
+        // Read the action, packing its characters into a long.
+        var word = 0L;
+        var length = 0;
+        for (; next != -1 && !Character.isWhitespace(next); next = this.read()) {
+            if (++length > 6) throw this.malformed();
+            word = word << 8 | Character.toLowerCase(next);
+        }
+
+        if (word == ON) this.action = TickQueue.Action.ON;
+        else if (word == OFF) this.action = TickQueue.Action.OFF;
+        else if (word == TOGGLE) this.action = TickQueue.Action.TOGGLE;
+        else throw this.malformed();
+
+        // Nothing else may follow on the line.
+        while (next == ' ' || next == '\t' || next == '\r') next = this.read();
+        if (next != '\n' && next != -1) throw this.malformed();
+
+        this.most = most;
+        this.least = least;
+        return true;
+    }
+
+    /**
+     * @return The UUID of the current item.
+     */
+    UUID uuid() {
+        return new UUID(this.most, this.least);
+    }
+
+    private static long pack(String word) {
+        var packed = 0L;
+        for (var character : word.toCharArray())
+            packed = packed << 8 | character;
+        return packed;
+    }
+
+    private int read() throws IOException {
+        if (this.position == this.limit) {
+            this.limit = this.input.read(this.buffer);
+            this.position = 0;
+            if (this.limit <= 0) {
+                this.limit = 0;
+                return -1;
+            }
+        }
+
+        return this.buffer[this.position++] & 0xFF;
+    }
+
+    private IllegalArgumentException malformed() {
+        return new IllegalArgumentException("Malformed item #" + this.count + ".");
+    }
+}
@@ -0,0 +1,94 @@
+package moe.seikimo.wirelessredstone;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Block changes made by components, applied once at the end of each tick.
+ * Only the last change to each position is applied, and changes are applied in chunk section order,
+ * so consecutive changes mostly hit the server's cache of recently used chunks.
+ * Clients receive one update per changed section, as the server already combines changes per tick.
+ * Must only be used on the server thread.
+ */
+public final class BlockUpdates {
+    /**
+     * The same flags as {@link Level#setBlockAndUpdate(BlockPos, BlockState)}.
+     * Nothing narrower works: neighbors must be notified to power adjacent redstone,
+     * and shape updates are needed as redstone wire connects to signal sources.
+     */
+    private static final int FLAGS = Block.UPDATE_ALL;
+
+    private static final Comparator<Update> ORDER = Comparator
+            .comparingLong(Update::section)
+            .thenComparingLong(Update::key)
+            .thenComparingInt(Update::sequence);
+
+    private final Map<Level, List<Update>> levels = new IdentityHashMap<>();
+    private int size = 0;
+
+    /**
+     * Queues a block change.
+     *
+     * @param level The level of the block.
+     * @param position The position of the block.
+     * @param state The new state of the block.
+     */
+    public void set(Level level, BlockPos position, BlockState state) {
+        var key = position.asLong();
+        this.levels.computeIfAbsent(level, ignored -> new ArrayList<>())
+                .add(new Update(SectionPos.blockToSection(key), key, position, state, this.size++));
+    }
+
+    /**
+     * Applies all queued changes.
+     * Invoked at the end of each tick.
+     */
+    public void apply() {
+        if (this.size == 0) return;
+        this.size = 0;
+
+        for (var entry : this.levels.entrySet()) {
+            var level = entry.getKey();
+            var updates = entry.getValue();
+            if (updates.isEmpty()) continue;
+
+            updates.sort(ORDER);
+            for (var i = 0; i < updates.size(); i++) {
+                var update = updates.get(i);
+
+                // Skip changes replaced later in the same tick.
+                if (i + 1 < updates.size() && updates.get(i + 1).key() == update.key()) continue;
+                level.setBlock(update.position(), update.state(), FLAGS);
+            }
+
+            updates.clear();
+        }
+    }
+
+    /**
+     * @return The amount of changes waiting to be applied.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * A queued block change.
+     *
+     * @param section The packed position of the chunk section.
+     * @param key The packed position of the block.
+     * @param position The position of the block.
+     * @param state The new state of the block.
+     * @param sequence The order in which the change was queued.
+     */
+    private record Update(long section, long key, BlockPos position, BlockState state, int sequence) {}
+}
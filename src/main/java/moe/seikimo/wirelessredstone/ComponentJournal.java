@@ -0,0 +1,748 @@
+package moe.seikimo.wirelessredstone;
+
+import net.minecraft.core.BlockPos;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only binary store of all redstone components.
+ * Every change is a CRC-checked record at the end of the file.
+ * Changes are queued, merged per component and written in batches by a background thread.
+ * Superseded records are removed by compacting in the background.
+ */
+public final class ComponentJournal {
+    private static final int MAGIC = 0x57524A31; // 'WRJ1'
+    private static final int HEADER_SIZE = 4;
+    private static final int MAX_PAYLOAD = 0xFFFF;
+
+    private static final byte TYPE_ENDPOINT = 1;
+    private static final byte TYPE_WAYPOINT = 2;
+    private static final byte TYPE_DELETE = 3;
+    private static final byte TYPE_STATE = 4;
+    private static final byte TYPE_MODE = 5;
+
+    private final File file;
+    private final RedstoneConfig.Storage config;
+
+    private final CRC32C checksum = new CRC32C();
+    private final Thread writer;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "Journal Compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** The live records of each component. */
+    private Map<UUID, Live> index = new HashMap<>();
+    private long liveBytes = 0;
+    private boolean compacting = false;
+
+    private FileChannel channel;
+    private ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+
+    /** Changes waiting to be written, guarded by the queue lock. */
+    private final Object queue = new Object();
+    private Map<UUID, Pending> pending = new LinkedHashMap<>();
+    private long queued = 0, written = 0;
+    private boolean opened = false, flushing = false, closing = false;
+
+    public ComponentJournal(File file, RedstoneConfig.Storage config) {
+        this.file = file;
+        this.config = config;
+
+        this.writer = new Thread(this::run, "Journal Writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Opens the journal and reads all components.
+     * The file is memory-mapped and scanned once.
+     * Records after the first corrupt record are discarded.
+     *
+     * @return The components in the journal.
+     */
+    public synchronized List<RedstoneComponent> open() throws IOException {
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // Write the header to a new journal.
+        if (this.channel.size() < HEADER_SIZE) {
+            this.channel.truncate(0);
+            this.channel.write(ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(0, MAGIC), 0);
+            this.channel.force(true);
+        }
+
+        // Scan the journal.
+        var components = new LinkedHashMap<UUID, RedstoneComponent>();
+        var data = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.channel.size());
+        if (data.getInt(0) != MAGIC)
+            throw new IOException("Not a component journal: " + this.file.getPath());
+
+        var end = this.scan(data, HEADER_SIZE, this.index, components);
+        if (end < data.limit()) {
+            WirelessRedstone.getLogger().warn("Discarding {} bytes of corrupt journal data.",
+                    data.limit() - end);
+            this.channel.truncate(end);
+        }
+
+        this.channel.position(end);
+
+        // Start writing queued changes.
+        synchronized (this.queue) {
+            this.opened = true;
+            this.queue.notifyAll();
+        }
+
+        return new ArrayList<>(components.values());
+    }
+
+    /**
+     * Imports components from a directory of the old one-file-per-component layout.
+     * The directory is renamed once all files are imported.
+     *
+     * @param directory The directory to import.
+     * @param parser The parser for the contents of each file.
+     * @return The imported components.
+     */
+    public List<RedstoneComponent> migrate(File directory, Function<String, RedstoneComponent> parser) {
+        var files = directory.listFiles();
+        if (files == null) return List.of();
+
+        var components = new ArrayList<RedstoneComponent>();
+        for (var file : files) {
+            try {
+                var component = parser.apply(Files.readString(file.toPath()));
+                this.write(component);
+                components.add(component);
+            } catch (IOException | RuntimeException ignored) {
+                WirelessRedstone.getLogger().error("Failed to migrate '{}'.", file.getName());
+            }
+        }
+
+        // Keep the old files, but out of the way.
+        this.flush();
+        var migrated = new File(directory.getParentFile(), directory.getName() + ".migrated");
+        if (!directory.renameTo(migrated))
+            WirelessRedstone.getLogger().warn("Failed to rename '{}' after migrating.", directory.getPath());
+
+        return components;
+    }
+
+    /**
+     * Records the creation of a component.
+     *
+     * @param component The component.
+     */
+    public void write(RedstoneComponent component) {
+        if (!(component instanceof RedstoneEndpoint) && !(component instanceof RedstoneWaypoint))
+            throw new IllegalArgumentException("Unknown component type.");
+
+        synchronized (this.queue) {
+            this.pending(component.getUuid()).component = component;
+        }
+    }
+
+    /**
+     * Records the deletion of a component.
+     * Discards changes to the component which were not written yet.
+     *
+     * @param uuid The UUID of the component.
+     */
+    public void delete(UUID uuid) {
+        synchronized (this.queue) {
+            var pending = this.pending(uuid);
+            pending.delete = true;
+            pending.component = null;
+            pending.mode = null;
+            pending.state = -1;
+        }
+    }
+
+    /**
+     * Records the state of an endpoint.
+     *
+     * @param uuid The UUID of the endpoint.
+     * @param enabled The state of the endpoint.
+     */
+    public void state(UUID uuid, boolean enabled) {
+        synchronized (this.queue) {
+            this.pending(uuid).state = (byte) (enabled ? 1 : 0);
+        }
+    }
+
+    /**
+     * Records the firing mode of a waypoint.
+     *
+     * @param uuid The UUID of the waypoint.
+     * @param mode The firing mode.
+     * @param ticks The tick interval of the mode.
+     */
+    public void mode(UUID uuid, RedstoneWaypoint.Mode mode, int ticks) {
+        synchronized (this.queue) {
+            var pending = this.pending(uuid);
+            pending.mode = mode;
+            pending.modeTicks = ticks;
+        }
+    }
+
+    /**
+     * Waits until all changes queued so far are written and synced.
+     * Returns immediately if the journal was never opened.
+     */
+    public void flush() {
+        synchronized (this.queue) {
+            var target = this.queued;
+            this.flushing = true;
+            this.queue.notifyAll();
+
+            while (this.written < target && this.opened && this.writer.isAlive()) {
+                try {
+                    this.queue.wait();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The amount of components with changes waiting to be written.
+     */
+    public int backlog() {
+        synchronized (this.queue) {
+            return this.pending.size();
+        }
+    }
+
+    /**
+     * Writes all queued changes, waits for compaction and closes the journal.
+     */
+    public void close() {
+        synchronized (this.queue) {
+            this.closing = true;
+            this.queue.notifyAll();
+        }
+
+        try {
+            this.writer.join();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.compactor.shutdown();
+        try {
+            this.compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            try {
+                if (this.channel == null) return;
+                this.channel.force(true);
+                this.channel.close();
+            } catch (IOException exception) {
+                WirelessRedstone.getLogger().error("Failed to close the journal.", exception);
+            }
+        }
+    }
+
+    /**
+     * Gets the queued changes of a component.
+     * Must be called while holding the queue lock.
+     *
+     * @param uuid The UUID of the component.
+     * @return The queued changes.
+     */
+    private Pending pending(UUID uuid) {
+        this.queued++;
+        // Only wake the writer for the first change, so later ones do not end its grouping window.
+        if (this.pending.isEmpty()) this.queue.notifyAll();
+        return this.pending.computeIfAbsent(uuid, Pending::new);
+    }
+
+    /**
+     * Run by the writer thread.
+     * Waits for changes, gives more changes a moment to arrive, then writes them as one batch.
+     */
+    private void run() {
+        while (true) {
+            Map<UUID, Pending> changes;
+            long target;
+
+            synchronized (this.queue) {
+                try {
+                    while (!this.closing && (!this.opened || this.pending.isEmpty()))
+                        this.queue.wait();
+
+                    // Group changes arriving shortly after the first.
+                    var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.config.getFlushInterval());
+                    for (var wait = deadline - System.nanoTime(); wait > 0 && !this.closing && !this.flushing;
+                         wait = deadline - System.nanoTime())
+                        TimeUnit.NANOSECONDS.timedWait(this.queue, wait);
+                } catch (InterruptedException ignored) {
+                    this.closing = true;
+                }
+
+                if (this.pending.isEmpty() || !this.opened) {
+                    if (this.closing) return;
+                    continue;
+                }
+
+                changes = this.pending;
+                target = this.queued;
+                this.pending = new LinkedHashMap<>();
+                this.flushing = false;
+            }
+
+            boolean success;
+            synchronized (this) {
+                success = this.writeBatch(changes.values());
+            }
+
+            synchronized (this.queue) {
+                if (success || this.closing) {
+                    if (!success) WirelessRedstone.getLogger().error(
+                            "Failed to write {} changes to the journal before closing.", changes.size());
+                    this.written = target;
+                    this.queue.notifyAll();
+                    continue;
+                }
+
+                // Put the changes back in front of newer ones and try again later.
+                for (var change : this.pending.values())
+                    changes.computeIfAbsent(change.uuid, Pending::new).merge(change);
+                this.pending = changes;
+
+                try {
+                    this.queue.wait(Math.max(1, this.config.getFlushInterval()));
+                } catch (InterruptedException ignored) {
+                    this.closing = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes changes into one buffer, writes it and syncs the file once.
+     * If writing fails, the file is cut back to where the batch started.
+     * Must be called while holding the journal lock.
+     *
+     * @param changes The changes to write.
+     * @return Whether the changes were written.
+     */
+    private boolean writeBatch(Collection<Pending> changes) {
+        this.batch.clear();
+        for (var change : changes) {
+            if (change.delete) {
+                var buffer = this.begin();
+                buffer.put(TYPE_DELETE);
+                putUuid(buffer, change.uuid);
+                this.end();
+            }
+
+            if (change.component instanceof RedstoneEndpoint endpoint) {
+                var buffer = this.begin();
+                buffer.put(TYPE_ENDPOINT);
+                putUuid(buffer, endpoint.getUuid());
+                putUuid(buffer, endpoint.getOwner());
+                putString(buffer, endpoint.getWorld().dimension().location().toString());
+                buffer.putLong(endpoint.getPosition().asLong());
+                this.end();
+            } else if (change.component instanceof RedstoneWaypoint waypoint) {
+                var buffer = this.begin();
+                buffer.put(TYPE_WAYPOINT);
+                putUuid(buffer, waypoint.getUuid());
+                putUuid(buffer, waypoint.getOwner());
+                putString(buffer, waypoint.getWorld().dimension().location().toString());
+                buffer.putLong(waypoint.getPosition().asLong());
+                putString(buffer, waypoint.getEndpoint());
+                this.end();
+            }
+
+            if (change.mode != null) {
+                var buffer = this.begin();
+                buffer.put(TYPE_MODE);
+                putUuid(buffer, change.uuid);
+                buffer.put((byte) change.mode.ordinal());
+                buffer.putInt(change.modeTicks);
+                this.end();
+            }
+
+            if (change.state != -1) {
+                var buffer = this.begin();
+                buffer.put(TYPE_STATE);
+                putUuid(buffer, change.uuid);
+                buffer.put(change.state);
+                this.end();
+            }
+        }
+
+        var buffer = this.batch.flip();
+        long offset = -1;
+        try {
+            offset = this.channel.position();
+            while (buffer.hasRemaining())
+                this.channel.write(buffer);
+            if (this.config.isSync())
+                this.channel.force(false);
+
+            // Index the records which were written.
+            for (var at = 0; at < buffer.limit(); at += 9 + buffer.getInt(at))
+                this.apply(this.index, buffer, at, offset + at, null);
+        } catch (IOException exception) {
+            WirelessRedstone.getLogger().error("Failed to write to the journal.", exception);
+
+            // Remove any part of the batch, so later records are not lost behind it.
+            try {
+                if (offset >= 0) this.channel.truncate(offset).position(offset);
+            } catch (IOException ignored) { }
+            return false;
+        }
+
+        // Compact once most of the journal is superseded.
+        var garbage = this.size() - HEADER_SIZE - this.liveBytes;
+        if (!this.compacting && garbage > this.config.getCompactThreshold() && garbage > this.liveBytes) {
+            this.compacting = true;
+            this.compactor.execute(this::compact);
+        }
+
+        return true;
+    }
+
+    /**
+     * Prepares the batch for a new record, growing it if needed.
+     *
+     * @return The batch, positioned at the record type.
+     */
+    private ByteBuffer begin() {
+        if (this.batch.remaining() < MAX_PAYLOAD + 9) {
+            var grown = ByteBuffer.allocate(this.batch.capacity() * 2);
+            this.batch = grown.put(this.batch.flip());
+        }
+
+        this.batch.mark();
+        return this.batch.putInt(0);
+    }
+
+    /**
+     * Frames the record started by {@link #begin()}.
+     */
+    private void end() {
+        var buffer = this.batch;
+        var end = buffer.position();
+        var start = buffer.reset().position();
+        buffer.position(end);
+        buffer.putInt(start, end - start - 5);
+
+        // Append the checksum.
+        this.checksum.reset();
+        this.checksum.update(buffer.array(), start, end - start);
+        buffer.putInt((int) this.checksum.getValue());
+    }
+
+    /**
+     * @return The size of the journal file.
+     */
+    private long size() {
+        try {
+            return this.channel.position();
+        } catch (IOException ignored) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads all valid records.
+     *
+     * @param data The journal data.
+     * @param start The offset of the first record.
+     * @param index The index to update.
+     * @param components Where to put decoded components, or null.
+     * @return The offset after the last valid record.
+     */
+    private long scan(ByteBuffer data, int start, Map<UUID, Live> index,
+                      Map<UUID, RedstoneComponent> components) {
+        var checksum = new CRC32C();
+        var offset = start;
+
+        while (offset + 9 <= data.limit()) {
+            var length = data.getInt(offset);
+            if (length < 0 || length > MAX_PAYLOAD || offset + 9 + length > data.limit()) break;
+
+            // Verify the checksum.
+            checksum.reset();
+            checksum.update(data.duplicate().position(offset).limit(offset + 5 + length));
+            if ((int) checksum.getValue() != data.getInt(offset + 5 + length)) break;
+
+            this.apply(index, data, offset, offset, components);
+            offset += 9 + length;
+        }
+
+        return offset;
+    }
+
+    /**
+     * Applies a record to an index.
+     *
+     * @param index The index to update.
+     * @param data The buffer containing the record.
+     * @param at The position of the record in the buffer.
+     * @param offset The position of the record in the journal.
+     * @param components Where to put decoded components, or null.
+     */
+    private void apply(Map<UUID, Live> index, ByteBuffer data, int at, long offset,
+                       Map<UUID, RedstoneComponent> components) {
+        var length = 9 + data.getInt(at);
+        var type = data.get(at + 4);
+        var uuid = new UUID(data.getLong(at + 5), data.getLong(at + 13));
+
+        switch (type) {
+            case TYPE_ENDPOINT, TYPE_WAYPOINT -> {
+                var previous = index.put(uuid, new Live(offset, length));
+                this.account(index, previous, -1);
+                this.account(index, index.get(uuid), 1);
+
+                if (components != null)
+                    components.put(uuid, decode(data.duplicate().position(at + 4)));
+            }
+            case TYPE_DELETE -> {
+                this.account(index, index.remove(uuid), -1);
+                if (components != null) components.remove(uuid);
+            }
+            case TYPE_STATE -> {
+                var live = index.get(uuid);
+                if (live == null) break;
+
+                this.account(index, live, -1);
+                live.stateOffset = offset;
+                live.stateLength = length;
+                this.account(index, live, 1);
+
+                if (components != null && components.get(uuid) instanceof RedstoneEndpoint endpoint)
+                    endpoint.setEnabled(data.get(at + 21) != 0);
+            }
+            case TYPE_MODE -> {
+                var live = index.get(uuid);
+                if (live == null) break;
+
+                this.account(index, live, -1);
+                live.modeOffset = offset;
+                live.modeLength = length;
+                this.account(index, live, 1);
+
+                if (components != null && components.get(uuid) instanceof RedstoneWaypoint waypoint)
+                    waypoint.restoreMode(RedstoneWaypoint.Mode.values()[data.get(at + 21)],
+                            data.getInt(at + 22));
+            }
+        }
+    }
+
+    /**
+     * Tracks the size of live records in the active index.
+     */
+    private void account(Map<UUID, Live> index, Live live, int sign) {
+        if (live == null || index != this.index) return;
+        this.liveBytes += sign * (live.length + live.stateLength + live.modeLength);
+    }
+
+    /**
+     * Rewrites the journal with only live records.
+     * Runs on the compactor thread.
+     */
+    private void compact() {
+        var temporary = new File(this.file.getPath() + ".compact");
+
+        try (var output = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Take a snapshot of the live records.
+            MappedByteBuffer data;
+            List<Map.Entry<UUID, Live>> live;
+            synchronized (this) {
+                data = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.channel.position());
+                live = this.index.entrySet().stream()
+                        .map(entry -> Map.entry(entry.getKey(), entry.getValue().copy()))
+                        .toList();
+            }
+
+            // Copy the live records without holding the lock.
+            output.write(ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC));
+            for (var entry : live) {
+                var record = entry.getValue();
+                this.copy(data, record.offset, record.length, output);
+                if (record.stateLength > 0)
+                    this.copy(data, record.stateOffset, record.stateLength, output);
+                if (record.modeLength > 0)
+                    this.copy(data, record.modeOffset, record.modeLength, output);
+            }
+
+            synchronized (this) {
+                // Copy records appended since the snapshot.
+                var end = this.channel.position();
+                if (end > data.limit())
+                    this.copy(this.channel.map(FileChannel.MapMode.READ_ONLY, data.limit(),
+                            end - data.limit()), 0, end - data.limit(), output);
+                output.force(true);
+
+                // Rebuild the index from the new file.
+                var index = new HashMap<UUID, Live>();
+                var compacted = output.map(FileChannel.MapMode.READ_ONLY, 0, output.size());
+                this.scan(compacted, HEADER_SIZE, index, null);
+
+                // Replace the journal.
+                this.channel.close();
+                Files.move(temporary.toPath(), this.file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                this.channel = FileChannel.open(this.file.toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                this.channel.position(this.channel.size());
+
+                this.index = index;
+                this.liveBytes = 0;
+                index.values().forEach(record -> this.account(index, record, 1));
+            }
+        } catch (IOException exception) {
+            WirelessRedstone.getLogger().error("Failed to compact the journal.", exception);
+        } finally {
+            synchronized (this) {
+                this.compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Copies a range of a buffer to a channel.
+     */
+    private void copy(ByteBuffer data, long offset, long length, FileChannel output) throws IOException {
+        var slice = data.duplicate()
+                .position((int) offset)
+                .limit((int) (offset + length));
+        while (slice.hasRemaining())
+            output.write(slice);
+    }
+
+    /**
+     * Decodes a component record.
+     *
+     * @param data The buffer, positioned at the record type.
+     * @return The component.
+     */
+    private static RedstoneComponent decode(ByteBuffer data) {
+        var type = data.get();
+        var uuid = getUuid(data);
+        var owner = getUuid(data);
+        var world = Serialize.parseLevel(getString(data));
+        var position = BlockPos.of(data.getLong());
+
+        return type == TYPE_ENDPOINT ?
+                new RedstoneEndpoint(uuid, owner, world, position) :
+                new RedstoneWaypoint(uuid, owner, getString(data), world, position);
+    }
+
+    private static void putUuid(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID getUuid(ByteBuffer buffer) {
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        var bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The location of the live records of a component.
+     */
+    private static final class Live {
+        private final long offset;
+        private final int length;
+        private long stateOffset = 0;
+        private int stateLength = 0;
+        private long modeOffset = 0;
+        private int modeLength = 0;
+
+        Live(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        Live copy() {
+            var copy = new Live(this.offset, this.length);
+            copy.stateOffset = this.stateOffset;
+            copy.stateLength = this.stateLength;
+            copy.modeOffset = this.modeOffset;
+            copy.modeLength = this.modeLength;
+            return copy;
+        }
+    }
+
+    /**
+     * The changes to a component waiting to be written.
+     * Later changes replace earlier ones.
+     */
+    private static final class Pending {
+        private final UUID uuid;
+        private boolean delete = false;
+        private RedstoneComponent component;
+        private RedstoneWaypoint.Mode mode;
+        private int modeTicks;
+        private byte state = -1;
+
+        Pending(UUID uuid) {
+            this.uuid = uuid;
+        }
+
+        /**
+         * Applies newer changes to the same component on top of these.
+         *
+         * @param newer The newer changes.
+         */
+        void merge(Pending newer) {
+            if (newer.delete) {
+                this.delete = true;
+                this.component = null;
+                this.mode = null;
+                this.state = -1;
+            }
+
+            if (newer.component != null) this.component = newer.component;
+            if (newer.mode != null) {
+                this.mode = newer.mode;
+                this.modeTicks = newer.modeTicks;
+            }
+            if (newer.state != -1) this.state = newer.state;
+        }
+    }
+}
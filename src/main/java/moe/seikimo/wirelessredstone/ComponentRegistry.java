@@ -0,0 +1,202 @@
+package moe.seikimo.wirelessredstone;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe index of all loaded redstone components.
+ * Positions are keyed by dimension and packed block position.
+ */
+public final class ComponentRegistry {
+    private final Map<ResourceKey<Level>, Dimension> dimensions = new ConcurrentHashMap<>();
+    private final Map<UUID, RedstoneEndpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<UUID, RedstoneWaypoint> waypoints = new ConcurrentHashMap<>();
+    private final Map<UUID, Set<RedstoneEndpoint>> owners = new ConcurrentHashMap<>();
+    private final StateTable states = new StateTable(this);
+    private final RegistryFeed feed = new RegistryFeed(this);
+    private volatile LevelLamps lastLamps = null;
+
+    /**
+     * @return The published states of all components.
+     */
+    public StateTable getStates() {
+        return this.states;
+    }
+
+    /**
+     * @return The log of endpoints being added and removed.
+     */
+    public RegistryFeed getFeed() {
+        return this.feed;
+    }
+
+    /**
+     * @param uuid The UUID of the endpoint.
+     * @return The endpoint, or null.
+     */
+    public RedstoneEndpoint getEndpoint(UUID uuid) {
+        return this.endpoints.get(uuid);
+    }
+
+    /**
+     * @param level The level of the endpoint.
+     * @param position The position of the endpoint.
+     * @return The endpoint, or null.
+     */
+    public RedstoneEndpoint getEndpoint(Level level, BlockPos position) {
+        var dimension = this.dimensions.get(level.dimension());
+        return dimension == null ? null : dimension.endpoints.get(position.asLong());
+    }
+
+    /**
+     * @param uuid The UUID of the waypoint.
+     * @return The waypoint, or null.
+     */
+    public RedstoneWaypoint getWaypoint(UUID uuid) {
+        return this.waypoints.get(uuid);
+    }
+
+    /**
+     * @param level The level of the waypoint.
+     * @param position The position of the waypoint.
+     * @return The waypoint, or null.
+     */
+    public RedstoneWaypoint getWaypoint(Level level, BlockPos position) {
+        var dimension = this.dimensions.get(level.dimension());
+        return dimension == null ? null : dimension.waypoints.get(position.asLong());
+    }
+
+    /**
+     * Checks whether a position might hold a waypoint, without allocating.
+     * Used to skip lamp updates which cannot belong to a waypoint.
+     *
+     * @param level The level of the position.
+     * @param position The position.
+     * @return False if the position holds no waypoint, true if it might.
+     */
+    public boolean mightHaveWaypoint(Level level, BlockPos position) {
+        // Lamp updates come in runs from the same level.
+        var last = this.lastLamps;
+        if (last == null || last.level() != level) {
+            var dimension = this.dimensions.get(level.dimension());
+            if (dimension == null) return false;
+            this.lastLamps = last = new LevelLamps(level, dimension.lamps);
+        }
+
+        return last.lamps().mightContain(position);
+    }
+
+    /**
+     * @param owner The UUID of the player.
+     * @return A copy of the endpoints owned by the player.
+     */
+    public List<RedstoneEndpoint> getEndpoints(UUID owner) {
+        var owned = this.owners.get(owner);
+        return owned == null ? List.of() : List.copyOf(owned);
+    }
+
+    /**
+     * @return A live view of all endpoints.
+     */
+    public Collection<RedstoneEndpoint> getEndpoints() {
+        return Collections.unmodifiableCollection(this.endpoints.values());
+    }
+
+    /**
+     * @return A live view of all waypoints.
+     */
+    public Collection<RedstoneWaypoint> getWaypoints() {
+        return Collections.unmodifiableCollection(this.waypoints.values());
+    }
+
+    /**
+     * Adds an endpoint to the registry.
+     *
+     * @param endpoint The endpoint.
+     */
+    public void add(RedstoneEndpoint endpoint) {
+        this.dimension(endpoint.getWorld()).endpoints
+                .put(endpoint.getPosition().asLong(), endpoint);
+        if (this.endpoints.put(endpoint.getUuid(), endpoint) == null)
+            this.feed.added(endpoint.getUuid());
+        // Add inside compute, so a concurrent remove cannot drop the set first.
+        this.owners.compute(endpoint.getOwner(), (key, owned) -> {
+            if (owned == null) owned = ConcurrentHashMap.newKeySet();
+            owned.add(endpoint);
+            return owned;
+        });
+        this.states.changed(endpoint);
+    }
+
+    /**
+     * Adds a waypoint to the registry.
+     *
+     * @param waypoint The waypoint.
+     */
+    public void add(RedstoneWaypoint waypoint) {
+        var dimension = this.dimension(waypoint.getWorld());
+        if (dimension.waypoints.put(waypoint.getPosition().asLong(), waypoint) == null)
+            dimension.lamps.add(waypoint.getPosition());
+        this.waypoints.put(waypoint.getUuid(), waypoint);
+        this.states.changed(waypoint);
+    }
+
+    /**
+     * Removes an endpoint from the registry.
+     *
+     * @param endpoint The endpoint.
+     */
+    public void remove(RedstoneEndpoint endpoint) {
+        this.dimension(endpoint.getWorld()).endpoints
+                .remove(endpoint.getPosition().asLong(), endpoint);
+        if (this.endpoints.remove(endpoint.getUuid(), endpoint))
+            this.feed.removed(endpoint.getUuid());
+        this.owners.computeIfPresent(endpoint.getOwner(), (key, owned) ->
+                owned.remove(endpoint) && owned.isEmpty() ? null : owned);
+        this.states.changed(endpoint);
+    }
+
+    /**
+     * Removes a waypoint from the registry.
+     *
+     * @param waypoint The waypoint.
+     */
+    public void remove(RedstoneWaypoint waypoint) {
+        var dimension = this.dimension(waypoint.getWorld());
+        if (dimension.waypoints.remove(waypoint.getPosition().asLong(), waypoint))
+            dimension.lamps.remove(waypoint.getPosition());
+        this.waypoints.remove(waypoint.getUuid(), waypoint);
+        this.states.changed(waypoint);
+    }
+
+    /**
+     * @param level The level.
+     * @return The components of the level's dimension.
+     */
+    private Dimension dimension(Level level) {
+        return this.dimensions.computeIfAbsent(level.dimension(), key -> new Dimension());
+    }
+
+    /**
+     * The waypoint filter of the level last checked.
+     */
+    private record LevelLamps(Level level, LampFilter lamps) {}
+
+    /**
+     * The components of one dimension.
+     */
+    private static final class Dimension {
+        private final LongObjectMap<RedstoneEndpoint> endpoints = new LongObjectMap<>();
+        private final LongObjectMap<RedstoneWaypoint> waypoints = new LongObjectMap<>();
+        private final LampFilter lamps = new LampFilter();
+    }
+}
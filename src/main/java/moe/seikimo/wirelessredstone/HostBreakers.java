@@ -0,0 +1,254 @@
+package moe.seikimo.wirelessredstone;
+
+import lombok.Getter;
+import okhttp3.HttpUrl;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Circuit breakers and adaptive timeouts for the hosts waypoints send to.
+ *
+ * A host's breaker opens after several failures in a row, and requests to it then fail
+ * without being sent. Once the breaker has been open for a while, one request is let through:
+ * if it succeeds the breaker closes, otherwise it stays open for twice as long.
+ * Results of requests let through before the breaker opened do not change it.
+ *
+ * Each request's timeout is a multiple of the host's recent 99th percentile latency,
+ * doubled for every timeout in a row, so a host which hangs holds a thread only
+ * for about as long as it normally takes to answer.
+ */
+public final class HostBreakers {
+    /** The amount of latencies kept per host. */
+    private static final int SAMPLES = 128;
+    /** The amount of latencies needed before timeouts adapt. */
+    private static final int MIN_SAMPLES = 16;
+
+    /**
+     * The state of a breaker.
+     */
+    public enum State {
+        /** Requests are sent. */
+        CLOSED,
+        /** Requests fail fast. */
+        OPEN,
+        /** One request is being sent to check if the host recovered. */
+        HALF_OPEN
+    }
+
+    private final RedstoneConfig.Breaker config;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    @Getter private final LongAdder fastFailed = new LongAdder();
+
+    public HostBreakers(RedstoneConfig.Breaker config) {
+        this.config = config;
+    }
+
+    /**
+     * Asks to send a request to a host.
+     * If the request is sent, its result must be reported with {@link #succeeded(Permit, long)}
+     * or {@link #failed(Permit, boolean)}, and the permit must then be released with
+     * {@link #release(Permit)} in any case.
+     *
+     * @param url The URL of the request.
+     * @return The permit to send the request, or null if it should fail fast.
+     */
+    public Permit acquire(HttpUrl url) {
+        if (!this.config.isEnabled()) return new Permit(null, this.config.getMaxTimeout(), 0, false);
+
+        var permit = this.host(url).acquire(System.nanoTime());
+        if (permit == null) this.fastFailed.increment();
+        return permit;
+    }
+
+    /**
+     * Records a request which the host answered.
+     *
+     * @param permit The permit of the request.
+     * @param nanos The latency of the request.
+     */
+    public void succeeded(Permit permit, long nanos) {
+        if (permit.host != null) permit.host.succeeded(permit, nanos);
+    }
+
+    /**
+     * Records a request which failed or which the host could not handle.
+     *
+     * @param permit The permit of the request.
+     * @param timedOut Whether the request timed out.
+     */
+    public void failed(Permit permit, boolean timedOut) {
+        if (permit.host != null) permit.host.failed(permit, System.nanoTime(), timedOut);
+    }
+
+    /**
+     * Releases a permit once its request is done.
+     * If the request was the probe and reported no result, another probe is let through.
+     *
+     * @param permit The permit of the request.
+     */
+    public void release(Permit permit) {
+        if (permit.host != null) permit.host.release(permit);
+    }
+
+    /**
+     * Would a request to a host fail fast right now.
+     *
+     * @param url The URL of the request.
+     * @return Whether the host's breaker is open and not ready for a probe.
+     */
+    public boolean isOpen(HttpUrl url) {
+        if (!this.config.isEnabled()) return false;
+
+        var host = this.hosts.get(HostBreakers.key(url));
+        return host != null && host.isOpen(System.nanoTime());
+    }
+
+    /**
+     * @return The amount of hosts whose breaker is not closed.
+     */
+    public int open() {
+        var open = 0;
+        for (var host : this.hosts.values())
+            if (host.state() != State.CLOSED) open++;
+        return open;
+    }
+
+    private Host host(HttpUrl url) {
+        return this.hosts.computeIfAbsent(HostBreakers.key(url), key -> new Host());
+    }
+
+    private static String key(HttpUrl url) {
+        return url.host() + ':' + url.port();
+    }
+
+    /**
+     * Permission to send one request to a host.
+     */
+    public static final class Permit {
+        private final Host host;
+        /** The timeout of the request, in milliseconds. */
+        @Getter private final long timeout;
+        /** The times the breaker had opened when the permit was given. */
+        private final long generation;
+        /** Whether the request checks if the host recovered. */
+        private final boolean probe;
+
+        private Permit(Host host, long timeout, long generation, boolean probe) {
+            this.host = host;
+            this.timeout = timeout;
+            this.generation = generation;
+            this.probe = probe;
+        }
+    }
+
+    /**
+     * The breaker and latencies of one host.
+     */
+    private final class Host {
+        private final long[] samples = new long[SAMPLES];
+        private int next = 0, count = 0, sinceSorted = 0;
+        private long percentile = -1;
+
+        private State state = State.CLOSED;
+        private int failures = 0, timeouts = 0;
+        private long openedAt, openFor;
+        /** The times the breaker opened; results of older permits do not change it. */
+        private long generation = 0;
+        private boolean probing = false;
+
+        synchronized State state() {
+            return this.state;
+        }
+
+        synchronized boolean isOpen(long now) {
+            return this.state == State.OPEN ? now - this.openedAt < this.openFor
+                    : this.state == State.HALF_OPEN && this.probing;
+        }
+
+        synchronized Permit acquire(long now) {
+            var probe = false;
+            switch (this.state) {
+                case OPEN -> {
+                    if (now - this.openedAt < this.openFor) return null;
+
+                    // Let one request through.
+                    this.state = State.HALF_OPEN;
+                    this.probing = probe = true;
+                }
+                case HALF_OPEN -> {
+                    if (this.probing) return null;
+                    this.probing = probe = true;
+                }
+            }
+
+            return new Permit(this, this.timeout(), this.generation, probe);
+        }
+
+        synchronized void succeeded(Permit permit, long nanos) {
+            this.samples[this.next] = nanos;
+            this.next = (this.next + 1) % SAMPLES;
+            this.count = Math.min(SAMPLES, this.count + 1);
+            this.sinceSorted++;
+
+            // Only the probe closes an open breaker.
+            if (permit.generation != this.generation) return;
+            if (this.state == State.HALF_OPEN && !permit.probe) return;
+
+            this.failures = this.timeouts = 0;
+            this.state = State.CLOSED;
+            this.probing = false;
+        }
+
+        synchronized void failed(Permit permit, long now, boolean timedOut) {
+            if (permit.generation != this.generation) return;
+
+            if (timedOut) this.timeouts++;
+            this.failures++;
+
+            if (this.state == State.HALF_OPEN && permit.probe) {
+                // Wait longer before checking again.
+                this.open(now, Math.min(TimeUnit.MILLISECONDS.toNanos(config.getMaxOpenTime()), this.openFor * 2));
+            } else if (this.state == State.CLOSED && this.failures >= config.getFailureThreshold()) {
+                this.open(now, TimeUnit.MILLISECONDS.toNanos(config.getOpenTime()));
+            }
+        }
+
+        synchronized void release(Permit permit) {
+            if (permit.probe && permit.generation == this.generation && this.state == State.HALF_OPEN)
+                this.probing = false;
+        }
+
+        private void open(long now, long openFor) {
+            this.generation++;
+            this.state = State.OPEN;
+            this.openedAt = now;
+            this.openFor = openFor;
+            this.probing = false;
+        }
+
+        /**
+         * @return The timeout for the next request, in milliseconds.
+         */
+        private long timeout() {
+            var max = config.getMaxTimeout();
+            if (this.count < MIN_SAMPLES) return max;
+
+            // Sort the latencies again once enough have changed.
+            if (this.percentile < 0 || this.sinceSorted >= MIN_SAMPLES) {
+                var sorted = Arrays.copyOf(this.samples, this.count);
+                Arrays.sort(sorted);
+                this.percentile = sorted[(int) Math.ceil(sorted.length * 0.99) - 1];
+                this.sinceSorted = 0;
+            }
+
+            var timeout = (long) (TimeUnit.NANOSECONDS.toMillis(this.percentile) * config.getTimeoutMultiplier());
+            timeout = Math.max(config.getMinTimeout(), timeout) << Math.min(this.timeouts, 16);
+            return Math.min(max, timeout);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package moe.seikimo.wirelessredstone;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the busiest endpoints, waypoints and owners.
+ * Endpoints count the requests which name them, waypoints count their firings,
+ * and owners count both for all of their components.
+ *
+ * Counts are kept in a ring of buckets, each covering a few seconds, so any window up to the
+ * length of the ring can be read. Each bucket is a space-saving summary with a fixed amount of
+ * counters: a new component takes over the counter of the least busy one, inheriting its count
+ * as the possible error. Components busier than 1 / capacity of a bucket are never lost,
+ * and memory does not grow with the amount of components.
+ */
+public final class HotSpots {
+    /**
+     * A kind of component being tracked.
+     */
+    public enum Kind {
+        ENDPOINTS, WAYPOINTS, OWNERS
+    }
+
+    private final RedstoneConfig.Top config;
+    private final long bucketLength;
+    private final long created = System.nanoTime();
+    private final Tracker[] trackers = new Tracker[Kind.values().length];
+
+    public HotSpots(RedstoneConfig.Top config) {
+        this.config = config;
+        this.bucketLength = TimeUnit.SECONDS.toNanos(Math.max(1, config.getBucketLength()));
+
+        for (var i = 0; i < this.trackers.length; i++)
+            this.trackers[i] = new Tracker(Math.max(1, config.getBuckets()),
+                    Math.max(1, config.getCapacity()));
+    }
+
+    /**
+     * Counts a request naming an endpoint.
+     *
+     * @param endpoint The endpoint.
+     */
+    public void requested(RedstoneEndpoint endpoint) {
+        if (!this.config.isEnabled()) return;
+
+        var bucket = this.bucket(System.nanoTime());
+        this.trackers[Kind.ENDPOINTS.ordinal()].record(endpoint.getUuid(), bucket);
+        this.trackers[Kind.OWNERS.ordinal()].record(endpoint.getOwner(), bucket);
+    }
+
+    /**
+     * Counts a waypoint firing.
+     *
+     * @param waypoint The waypoint.
+     */
+    public void fired(RedstoneWaypoint waypoint) {
+        if (!this.config.isEnabled()) return;
+
+        var bucket = this.bucket(System.nanoTime());
+        this.trackers[Kind.WAYPOINTS.ordinal()].record(waypoint.getUuid(), bucket);
+        this.trackers[Kind.OWNERS.ordinal()].record(waypoint.getOwner(), bucket);
+    }
+
+    /**
+     * Reads the busiest components of a kind.
+     *
+     * @param kind The kind of component.
+     * @param count The most components to return.
+     * @param window The length of the window, in seconds; limited to the length of the ring.
+     * @return The components, busiest first.
+     */
+    public List<Entry> top(Kind kind, int count, long window) {
+        var now = System.nanoTime();
+        var current = this.bucket(now);
+        var buckets = (int) Math.min(this.config.getBuckets(),
+                Math.max(1, (TimeUnit.SECONDS.toNanos(window) + this.bucketLength - 1) / this.bucketLength));
+
+        // The window starts with the oldest bucket read, or when tracking started.
+        var start = Math.max((current - buckets + 1) * this.bucketLength, this.created);
+        var seconds = Math.max(1, now - start) / 1e9;
+
+        var entries = this.trackers[kind.ordinal()].merge(current - buckets + 1, current);
+        entries.sort((a, b) -> Long.compare(b[0], a[0]));
+
+        var top = new ArrayList<Entry>(Math.min(count, entries.size()));
+        for (var entry : entries.subList(0, Math.min(count, entries.size())))
+            top.add(new Entry(new UUID(entry[2], entry[3]), entry[0], entry[1], entry[0] / seconds));
+        return top;
+    }
+
+    /**
+     * @return The longest window which can be read, in seconds.
+     */
+    public long longestWindow() {
+        return TimeUnit.NANOSECONDS.toSeconds(this.bucketLength) * Math.max(1, this.config.getBuckets());
+    }
+
+    private long bucket(long now) {
+        return Math.floorDiv(now, this.bucketLength);
+    }
+
+    /**
+     * A busy component.
+     *
+     * @param uuid The UUID of the component or owner.
+     * @param count The amount of requests or firings in the window.
+     * @param error How much of the count may belong to components counted before it.
+     * @param rate The count per second.
+     */
+    public record Entry(UUID uuid, long count, long error, double rate) {}
+
+    /**
+     * The ring of buckets of one kind of component.
+     */
+    private static final class Tracker {
+        private final Summary[] buckets;
+
+        Tracker(int buckets, int capacity) {
+            this.buckets = new Summary[buckets];
+            for (var i = 0; i < buckets; i++)
+                this.buckets[i] = new Summary(capacity);
+        }
+
+        synchronized void record(UUID uuid, long bucket) {
+            var summary = this.buckets[(int) Math.floorMod(bucket, (long) this.buckets.length)];
+            if (summary.number != bucket) summary.reset(bucket);
+            summary.add(uuid);
+        }
+
+        /**
+         * Adds up the buckets in a range.
+         * A component missing from a full bucket may have been counted there up to
+         * the bucket's smallest count, which is added to its error.
+         *
+         * @return The components as [count, error, most significant bits, least significant bits].
+         */
+        synchronized List<long[]> merge(long from, long to) {
+            var merged = new HashMap<UUID, long[]>();
+            var full = new ArrayList<Summary>();
+            for (var summary : this.buckets) {
+                if (summary.number < from || summary.number > to) continue;
+                if (summary.full()) full.add(summary);
+
+                for (var slot = 0; slot < summary.size; slot++) {
+                    var counter = summary.heap[slot];
+                    var entry = merged.computeIfAbsent(counter.uuid, uuid -> new long[] {0, 0,
+                            uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()});
+                    entry[0] += counter.count;
+                    entry[1] += counter.error;
+                }
+            }
+
+            for (var summary : full) {
+                var min = summary.heap[0].count;
+                for (var entry : merged.entrySet())
+                    if (!summary.counters.containsKey(entry.getKey())) entry.getValue()[1] += min;
+            }
+
+            return new ArrayList<>(merged.values());
+        }
+    }
+
+    /**
+     * A space-saving summary of one bucket.
+     * The counters form a min-heap, so the least busy component is replaced in logarithmic time.
+     */
+    private static final class Summary {
+        private final Counter[] heap;
+        private final Map<UUID, Counter> counters;
+        private int size = 0;
+        private long number = Long.MIN_VALUE;
+
+        Summary(int capacity) {
+            this.heap = new Counter[capacity];
+            this.counters = new HashMap<>(capacity * 2);
+        }
+
+        boolean full() {
+            return this.size == this.heap.length;
+        }
+
+        void reset(long number) {
+            this.counters.clear();
+            this.size = 0;
+            this.number = number;
+        }
+
+        void add(UUID uuid) {
+            var counter = this.counters.get(uuid);
+            if (counter != null) {
+                counter.count++;
+                this.down(counter.slot);
+                return;
+            }
+
+            if (this.size < this.heap.length) {
+                // Take a free counter.
+                counter = this.heap[this.size];
+                if (counter == null) counter = this.heap[this.size] = new Counter();
+
+                counter.uuid = uuid;
+                counter.count = 1;
+                counter.error = 0;
+                counter.slot = this.size++;
+                this.counters.put(uuid, counter);
+                this.up(counter.slot);
+                return;
+            }
+
+            // Take over the counter of the least busy component.
+            counter = this.heap[0];
+            this.counters.remove(counter.uuid);
+            counter.uuid = uuid;
+            counter.error = counter.count++;
+            this.counters.put(uuid, counter);
+            this.down(0);
+        }
+
+        private void up(int slot) {
+            var counter = this.heap[slot];
+            while (slot > 0) {
+                var parent = (slot - 1) / 2;
+                if (this.heap[parent].count <= counter.count) break;
+
+                this.place(this.heap[parent], slot);
+                slot = parent;
+            }
+
+            this.place(counter, slot);
+        }
+
+        private void down(int slot) {
+            var counter = this.heap[slot];
+            while (true) {
+                var child = slot * 2 + 1;
+                if (child >= this.size) break;
+                if (child + 1 < this.size && this.heap[child + 1].count < this.heap[child].count) child++;
+                if (this.heap[child].count >= counter.count) break;
+
+                this.place(this.heap[child], slot);
+                slot = child;
+            }
+
+            this.place(counter, slot);
+        }
+
+        private void place(Counter counter, int slot) {
+            this.heap[slot] = counter;
+            counter.slot = slot;
+        }
+    }
+
+    /**
+     * The count of one component in a bucket.
+     */
+    private static final class Counter {
+        private UUID uuid;
+        private long count, error;
+        private int slot;
+    }
+}
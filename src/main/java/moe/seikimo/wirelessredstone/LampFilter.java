@@ -0,0 +1,65 @@
+package moe.seikimo.wirelessredstone;
+
+import net.minecraft.core.BlockPos;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counting Bloom filter of the positions of waypoints in one dimension.
+ * Answers whether a position might hold a waypoint without allocating,
+ * so lamp updates elsewhere skip the registry lookup.
+ *
+ * Each position sets two counters, one picked by its chunk and one by the block itself.
+ * Lamps in chunks without waypoints almost never pass; lamps next to waypoints pass
+ * about once per 65 thousand lamps for every waypoint in the dimension.
+ */
+final class LampFilter {
+    private static final int SIZE = 1 << 16;
+    private static final int MASK = SIZE - 1;
+
+    private final AtomicIntegerArray counters = new AtomicIntegerArray(SIZE);
+
+    /**
+     * @param position The position of a waypoint.
+     */
+    void add(BlockPos position) {
+        var key = position.asLong();
+        this.counters.incrementAndGet(chunkSlot(position.getX(), position.getZ()));
+        this.counters.incrementAndGet(blockSlot(key));
+    }
+
+    /**
+     * @param position The position of a removed waypoint.
+     */
+    void remove(BlockPos position) {
+        var key = position.asLong();
+        this.counters.decrementAndGet(chunkSlot(position.getX(), position.getZ()));
+        this.counters.decrementAndGet(blockSlot(key));
+    }
+
+    /**
+     * @param position A position.
+     * @return False if the position holds no waypoint, true if it might.
+     */
+    boolean mightContain(BlockPos position) {
+        return this.counters.get(chunkSlot(position.getX(), position.getZ())) != 0
+                && this.counters.get(blockSlot(position.asLong())) != 0;
+    }
+
+    private static int chunkSlot(int x, int z) {
+        return mix(((long) (x >> 4) << 32) ^ ((z >> 4) & 0xFFFFFFFFL)) & MASK;
+    }
+
+    private static int blockSlot(long key) {
+        return mix(key ^ 0x9E3779B97F4A7C15L) & MASK;
+    }
+
+    /**
+     * The finalizer of SplitMix64.
+     */
+    private static int mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return (int) (value ^ (value >>> 31));
+    }
+}
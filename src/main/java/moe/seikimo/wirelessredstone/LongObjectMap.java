@@ -0,0 +1,277 @@
+package moe.seikimo.wirelessredstone;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Concurrent open-addressing map with primitive long keys.
+ * Reads are optimistic and lock-free; writes lock one of several stripes.
+ *
+ * @param <V> The type of values.
+ */
+final class LongObjectMap<V> {
+    private static final Object REMOVED = new Object();
+    private static final int STRIPES = 16;
+
+    private final Segment[] segments = new Segment[STRIPES];
+
+    LongObjectMap() {
+        for (var i = 0; i < STRIPES; i++)
+            this.segments[i] = new Segment();
+    }
+
+    /**
+     * @param key The key.
+     * @return The value mapped to the key, or null.
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        var hash = mix(key);
+        return (V) this.segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * Maps a key to a value.
+     *
+     * @param key The key.
+     * @param value The value, which cannot be null.
+     * @return The previous value, or null.
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) throw new NullPointerException("value");
+
+        var hash = mix(key);
+        return (V) this.segmentFor(hash).put(key, hash, value);
+    }
+
+    /**
+     * Removes the mapping of a key.
+     *
+     * @param key The key.
+     * @return The removed value, or null.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        var hash = mix(key);
+        return (V) this.segmentFor(hash).remove(key, hash);
+    }
+
+    /**
+     * Removes the mapping of a key only if it maps to the value.
+     *
+     * @param key The key.
+     * @param value The expected value.
+     * @return Whether the mapping was removed.
+     */
+    boolean remove(long key, V value) {
+        var hash = mix(key);
+        return this.segmentFor(hash).remove(key, hash, value);
+    }
+
+    /**
+     * @return The amount of mappings.
+     */
+    int size() {
+        var size = 0;
+        for (var segment : this.segments)
+            size += segment.size;
+        return size;
+    }
+
+    /**
+     * Runs an action for every value.
+     * Each stripe is read under its lock.
+     *
+     * @param action The action to run.
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(Consumer<? super V> action) {
+        for (var segment : this.segments)
+            segment.forEach(value -> action.accept((V) value));
+    }
+
+    private Segment segmentFor(int hash) {
+        return this.segments[(hash >>> 28) & (STRIPES - 1)];
+    }
+
+    /**
+     * Spreads the bits of a packed block position.
+     */
+    private static int mix(long key) {
+        var hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * One stripe of the map.
+     */
+    private static final class Segment {
+        private final StampedLock lock = new StampedLock();
+        private volatile Table table = new Table(16);
+        private volatile int size = 0;
+        private int used = 0;
+
+        Object get(long key, int hash) {
+            var stamp = this.lock.tryOptimisticRead();
+            var value = this.table.find(key, hash);
+            if (this.lock.validate(stamp)) return value;
+
+            // A write happened during the read; read again under the lock.
+            stamp = this.lock.readLock();
+            try {
+                return this.table.find(key, hash);
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+
+        Object put(long key, int hash, Object value) {
+            var stamp = this.lock.writeLock();
+            try {
+                var table = this.table;
+                var mask = table.keys.length - 1;
+                var free = -1;
+
+                for (var i = hash & mask; ; i = (i + 1) & mask) {
+                    var current = table.values[i];
+                    if (current == null) {
+                        if (free == -1) {
+                            free = i;
+                            this.used++;
+                        }
+                        break;
+                    }
+
+                    if (current == REMOVED) {
+                        if (free == -1) free = i;
+                    } else if (table.keys[i] == key) {
+                        table.values[i] = value;
+                        return current;
+                    }
+                }
+
+                table.keys[free] = key;
+                table.values[free] = value;
+                this.size++;
+
+                // Grow or clean up once the table is too full.
+                if (this.used > table.keys.length * 3 / 4)
+                    this.rehash();
+
+                return null;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        Object remove(long key, int hash) {
+            var stamp = this.lock.writeLock();
+            try {
+                var table = this.table;
+                var index = table.indexOf(key, hash);
+                if (index == -1) return null;
+
+                var previous = table.values[index];
+                table.values[index] = REMOVED;
+                this.size--;
+
+                return previous;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        boolean remove(long key, int hash, Object value) {
+            var stamp = this.lock.writeLock();
+            try {
+                var table = this.table;
+                var index = table.indexOf(key, hash);
+                if (index == -1 || table.values[index] != value) return false;
+
+                table.values[index] = REMOVED;
+                this.size--;
+
+                return true;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        void forEach(Consumer<Object> action) {
+            var stamp = this.lock.readLock();
+            try {
+                for (var value : this.table.values)
+                    if (value != null && value != REMOVED) action.accept(value);
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Copies live entries into a table sized for them.
+         * Must be called while holding the write lock.
+         */
+        private void rehash() {
+            var capacity = 16;
+            while (capacity * 3 / 8 < this.size + 1) capacity <<= 1;
+
+            var old = this.table;
+            var table = new Table(capacity);
+            var mask = capacity - 1;
+            for (var i = 0; i < old.keys.length; i++) {
+                var value = old.values[i];
+                if (value == null || value == REMOVED) continue;
+
+                var key = old.keys[i];
+                var slot = mix(key) & mask;
+                while (table.values[slot] != null) slot = (slot + 1) & mask;
+
+                table.keys[slot] = key;
+                table.values[slot] = value;
+            }
+
+            this.table = table;
+            this.used = this.size;
+        }
+    }
+
+    /**
+     * The arrays backing a segment.
+     */
+    private static final class Table {
+        private final long[] keys;
+        private final Object[] values;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+        }
+
+        /**
+         * Finds the value of a key.
+         * Safe to call without the lock; the result must then be validated.
+         */
+        Object find(long key, int hash) {
+            var mask = this.keys.length - 1;
+            for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                var value = this.values[i];
+                if (value == null) return null;
+                if (value != REMOVED && this.keys[i] == key) return value;
+            }
+
+            return null;
+        }
+
+        int indexOf(long key, int hash) {
+            var mask = this.keys.length - 1;
+            for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                var value = this.values[i];
+                if (value == null) return -1;
+                if (value != REMOVED && this.keys[i] == key) return i;
+            }
+
+            return -1;
+        }
+    }
+}
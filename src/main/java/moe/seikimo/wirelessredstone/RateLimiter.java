@@ -0,0 +1,153 @@
+package moe.seikimo.wirelessredstone;
+
+import lombok.Getter;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control for the HTTP server.
+ * Keeps a token bucket per endpoint, per owner and per remote address.
+ *
+ * Each bucket is one atomic long holding the time at which it is next full,
+ * which is updated with compare-and-set, so checking a limit never locks.
+ * Buckets which have refilled are the same as new buckets, so they are forgotten.
+ */
+public final class RateLimiter {
+    private final RedstoneConfig.Limits config;
+    private final Limit endpoint, owner, address;
+
+    private final Map<UUID, AtomicLong> endpoints = new ConcurrentHashMap<>();
+    private final Map<UUID, AtomicLong> owners = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> addresses = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    @Getter private final LongAdder rejected = new LongAdder();
+
+    public RateLimiter(RedstoneConfig.Limits config) {
+        this.config = config;
+        this.endpoint = new Limit(config.getEndpointRate(), config.getEndpointBurst());
+        this.owner = new Limit(config.getOwnerRate(), config.getOwnerBurst());
+        this.address = new Limit(config.getAddressRate(), config.getAddressBurst());
+    }
+
+    /**
+     * Checks the limit of a remote address.
+     * Should be checked before looking up anything named in the request.
+     *
+     * @param address The remote address.
+     * @return 0 if admitted, otherwise the nanoseconds to wait before retrying.
+     */
+    public long admit(String address) {
+        if (!this.config.isEnabled() || this.address.disabled()) return 0;
+
+        var now = System.nanoTime();
+        this.sweep(now);
+
+        var bucket = this.addresses.get(address);
+        if (bucket == null) {
+            // Refuse new addresses once too many are tracked.
+            if (this.addresses.size() >= this.config.getMaxAddresses()) {
+                this.rejected.increment();
+                return this.address.interval;
+            }
+
+            bucket = this.addresses.computeIfAbsent(address, key -> new AtomicLong(now));
+        }
+
+        return this.take(this.address, bucket, now);
+    }
+
+    /**
+     * Checks the limits of an endpoint and its owner.
+     *
+     * @param endpoint The endpoint being changed.
+     * @return 0 if admitted, otherwise the nanoseconds to wait before retrying.
+     */
+    public long admit(RedstoneEndpoint endpoint) {
+        if (!this.config.isEnabled()) return 0;
+
+        var now = System.nanoTime();
+        this.sweep(now);
+
+        if (!this.endpoint.disabled()) {
+            var wait = this.take(this.endpoint, this.endpoints
+                    .computeIfAbsent(endpoint.getUuid(), key -> new AtomicLong(now)), now);
+            if (wait > 0) return wait;
+        }
+
+        if (this.owner.disabled()) return 0;
+        return this.take(this.owner, this.owners
+                .computeIfAbsent(endpoint.getOwner(), key -> new AtomicLong(now)), now);
+    }
+
+    /**
+     * @return The amount of buckets being tracked.
+     */
+    public int size() {
+        return this.endpoints.size() + this.owners.size() + this.addresses.size();
+    }
+
+    /**
+     * Takes a token from a bucket.
+     *
+     * @param limit The limit of the bucket.
+     * @param bucket The time at which the bucket is next full.
+     * @param now The current time.
+     * @return 0 if a token was taken, otherwise the nanoseconds until one is available.
+     */
+    private long take(Limit limit, AtomicLong bucket, long now) {
+        while (true) {
+            var full = bucket.get();
+            var next = Math.max(full, now) + limit.interval;
+
+            // The bucket is empty once it is more than the burst away from full.
+            var wait = next - now - limit.tolerance;
+            if (wait > 0) {
+                this.rejected.increment();
+                return wait;
+            }
+
+            if (bucket.compareAndSet(full, next)) return 0;
+        }
+    }
+
+    /**
+     * Forgets buckets which have refilled.
+     * Runs on whichever request thread first notices the interval has passed.
+     *
+     * @param now The current time.
+     */
+    private void sweep(long now) {
+        var last = this.lastSweep.get();
+        if (now - last < TimeUnit.MILLISECONDS.toNanos(this.config.getSweepInterval())
+                || !this.lastSweep.compareAndSet(last, now)) return;
+
+        this.endpoints.values().removeIf(bucket -> bucket.get() - now <= 0);
+        this.owners.values().removeIf(bucket -> bucket.get() - now <= 0);
+        this.addresses.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+
+    /**
+     * The rate and burst of one kind of bucket.
+     */
+    private static final class Limit {
+        /** The nanoseconds between tokens. */
+        private final long interval;
+        /** The nanoseconds of tokens which can be taken at once. */
+        private final long tolerance;
+
+        Limit(double rate, int burst) {
+            this.interval = rate <= 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            this.tolerance = this.interval * Math.max(1, burst);
+        }
+
+        boolean disabled() {
+            return this.interval == 0;
+        }
+    }
+}
@@ -10,13 +10,18 @@ import net.minecraft.network.chat.Style;
 import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.item.Items;
 
+import java.io.IOException;
 import java.util.UUID;
 
+import static com.mojang.brigadier.arguments.IntegerArgumentType.*;
 import static com.mojang.brigadier.arguments.StringArgumentType.*;
 import static net.minecraft.commands.Commands.*;
 
 public interface RedstoneCommand {
-    String USAGE_MESSAGE = "Usage: /redstone <create|delete> [endpoint|waypoint] [url]";
+    String USAGE_MESSAGE = "Usage: /redstone <create|delete|mode|top|trace> [endpoint|waypoint] [url]";
+    String MODE_USAGE = "Usage: /redstone mode <every_edge|rising_edge|debounce|rate_limit> [ticks]";
+    String TOP_USAGE = "Usage: /redstone top [endpoints|waypoints|owners] [seconds]";
+    String TRACE_USAGE = "Usage: /redstone trace <start|stop>";
     String WRONG_PLATFORM = "This command can only be used by players.";
     String NEED_ENDPOINT_MATERIALS = "This requires a redstone block and a quartz block.";
     String NEED_WAYPOINT_MATERIALS = "This requires a redstone lamp.";
@@ -37,6 +42,24 @@ public interface RedstoneCommand {
                                 .executes(RedstoneCommand::create))
                         .then(literal("delete")
                                 .executes(RedstoneCommand::delete))
+                        .then(literal("mode")
+                                .then(argument("mode", word())
+                                        .then(argument("ticks", integer(0))
+                                                .executes(RedstoneCommand::mode))
+                                        .executes(RedstoneCommand::mode))
+                                .executes(RedstoneCommand::base))
+                        .then(literal("top")
+                                .requires(source -> source.hasPermission(2))
+                                .then(argument("kind", word())
+                                        .then(argument("seconds", integer(1))
+                                                .executes(RedstoneCommand::top))
+                                        .executes(RedstoneCommand::top))
+                                .executes(RedstoneCommand::top))
+                        .then(literal("trace")
+                                .requires(source -> source.hasPermission(2))
+                                .then(argument("action", word())
+                                        .executes(RedstoneCommand::trace))
+                                .executes(RedstoneCommand::trace))
                         .executes(RedstoneCommand::base)
         );
     }
@@ -145,8 +168,9 @@ public interface RedstoneCommand {
         var position = player.getOnPos();
 
         // Check if there is a redstone component at the player's feet.
-        RedstoneComponent component = WirelessRedstone.getEndpoints().get(position);
-        if (component == null) component = WirelessRedstone.getWaypoints().get(position);
+        var registry = WirelessRedstone.getRegistry();
+        RedstoneComponent component = registry.getEndpoint(player.getLevel(), position);
+        if (component == null) component = registry.getWaypoint(player.getLevel(), position);
         if (component == null) {
             source.sendFailure(Component.literal("There is no redstone component here."));
             return 1;
@@ -164,4 +188,154 @@ public interface RedstoneCommand {
         player.sendSystemMessage(Component.literal("Component deleted!"));
         return 1;
     }
+
+    /**
+     * Handler for '/redstone mode'.
+     *
+     * @param ctx The command context.
+     */
+    static int mode(CommandContext<CommandSourceStack> ctx) {
+        var source = ctx.getSource();
+
+        // Check if the command is being executed by a player.
+        if (!source.isPlayer())
+            source.sendFailure(Component.literal(RedstoneCommand.WRONG_PLATFORM));
+        var player = source.getPlayer(); assert player != null;
+
+        // Parse the mode and interval.
+        RedstoneWaypoint.Mode mode;
+        try {
+            mode = RedstoneWaypoint.Mode.valueOf(getString(ctx, "mode").toUpperCase());
+        } catch (IllegalArgumentException ignored) {
+            source.sendFailure(Component.literal(RedstoneCommand.MODE_USAGE));
+            return 1;
+        }
+
+        int ticks;
+        try {
+            ticks = getInteger(ctx, "ticks");
+        } catch (IllegalArgumentException ignored) {
+            ticks = 0;
+        }
+
+        if (ticks == 0 && (mode == RedstoneWaypoint.Mode.DEBOUNCE || mode == RedstoneWaypoint.Mode.RATE_LIMIT)) {
+            source.sendFailure(Component.literal("This mode requires an interval in ticks."));
+            return 1;
+        }
+
+        // Check if there is a waypoint at the player's feet.
+        var waypoint = WirelessRedstone.getRegistry()
+                .getWaypoint(player.getLevel(), player.getOnPos());
+        if (waypoint == null) {
+            source.sendFailure(Component.literal("There is no waypoint here."));
+            return 1;
+        }
+
+        // Check if the player is the owner of the waypoint.
+        if (!waypoint.isOwner(player.getUUID())) {
+            source.sendFailure(Component.literal("You are not the owner of this waypoint."));
+            return 1;
+        }
+
+        waypoint.setMode(mode, ticks);
+
+        player.sendSystemMessage(Component.literal("Waypoint mode set to " +
+                mode.name().toLowerCase() + (ticks > 0 ? " (" + ticks + " ticks)." : ".")));
+        return 1;
+    }
+
+    /**
+     * Handler for '/redstone top'.
+     * Lists the busiest components of a kind; endpoints over the last minute by default.
+     *
+     * @param ctx The command context.
+     */
+    static int top(CommandContext<CommandSourceStack> ctx) {
+        var source = ctx.getSource();
+
+        // Parse the kind and window.
+        String name;
+        try {
+            name = getString(ctx, "kind");
+        } catch (IllegalArgumentException ignored) {
+            name = "endpoints";
+        }
+
+        HotSpots.Kind kind;
+        try {
+            kind = HotSpots.Kind.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException ignored) {
+            source.sendFailure(Component.literal(RedstoneCommand.TOP_USAGE));
+            return 1;
+        }
+
+        int seconds;
+        try {
+            seconds = getInteger(ctx, "seconds");
+        } catch (IllegalArgumentException ignored) {
+            seconds = 60;
+        }
+
+        var hotSpots = WirelessRedstone.getHotSpots();
+        var entries = hotSpots.top(kind, 10, seconds);
+        var window = Math.min(seconds, hotSpots.longestWindow());
+        if (entries.isEmpty()) {
+            source.sendSuccess(Component.literal("No " + kind.name().toLowerCase() +
+                    " were used in the last " + window + " seconds."), false);
+            return 1;
+        }
+
+        source.sendSuccess(Component.literal("Busiest " + kind.name().toLowerCase() +
+                " over the last " + window + " seconds:"), false);
+        for (var entry : entries) {
+            var uuid = entry.uuid().toString();
+            source.sendSuccess(Component.literal(uuid + ": " + Math.round(entry.rate() * 100) / 100.0 +
+                    "/s (" + entry.count() + (entry.error() > 0 ? ", error " + entry.error() : "") + ")")
+                    .setStyle(Style.EMPTY.withClickEvent(new ClickEvent(ClickEvent.Action.COPY_TO_CLIPBOARD, uuid))), false);
+        }
+
+        return 1;
+    }
+
+    /**
+     * Handler for '/redstone trace'.
+     * Starts or stops recording traffic to a trace file.
+     *
+     * @param ctx The command context.
+     */
+    static int trace(CommandContext<CommandSourceStack> ctx) {
+        var source = ctx.getSource();
+        var trace = WirelessRedstone.getTrace();
+
+        String action;
+        try {
+            action = getString(ctx, "action");
+        } catch (IllegalArgumentException ignored) {
+            action = "";
+        }
+
+        switch (action) {
+            default -> source.sendFailure(Component.literal(RedstoneCommand.TRACE_USAGE));
+            case "start" -> {
+                if (trace.isRecording()) {
+                    source.sendFailure(Component.literal("Already recording to " + trace.getFile().getName() + "."));
+                    return 1;
+                }
+
+                try {
+                    source.sendSuccess(Component.literal("Recording to " + trace.start().getName() + "."), true);
+                } catch (IOException exception) {
+                    WirelessRedstone.getLogger().error("Failed to start recording traffic.", exception);
+                    source.sendFailure(Component.literal("Failed to start recording."));
+                }
+            }
+            case "stop" -> {
+                var file = trace.stop();
+                if (file == null) source.sendFailure(Component.literal("Nothing is being recorded."));
+                else source.sendSuccess(Component.literal("Saved the trace to " + file.getName() + "."), true);
+            }
+        }
+
+        return 1;
+    }
 }
@@ -1,8 +1,20 @@
 package moe.seikimo.wirelessredstone;
 
+import net.minecraft.world.level.Level;
+
 import java.util.UUID;
 
 public interface RedstoneComponent {
+    /**
+     * @return The UUID of the component.
+     */
+    UUID getUuid();
+
+    /**
+     * @return The level the component is in.
+     */
+    Level getWorld();
+
     /**
      * Saves the component.
      */
@@ -0,0 +1,243 @@
+package moe.seikimo.wirelessredstone;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Configuration of the mod.
+ * Stored as JSON in the data directory.
+ */
+@Getter
+public final class RedstoneConfig {
+    private static final Gson gson = new GsonBuilder()
+            .setPrettyPrinting().create();
+
+    /**
+     * Loads the configuration from a file.
+     * Writes the default configuration if the file does not exist.
+     *
+     * @param file The configuration file.
+     * @return The loaded configuration.
+     */
+    public static RedstoneConfig load(File file) {
+        var config = new RedstoneConfig();
+
+        try {
+            // Read the existing configuration.
+            if (file.exists()) {
+                var loaded = gson.fromJson(Files.readString(file.toPath()), RedstoneConfig.class);
+                if (loaded != null) config = loaded;
+            }
+
+            // Write the configuration back to include new options.
+            Files.writeString(file.toPath(), gson.toJson(config));
+        } catch (IOException | JsonParseException exception) {
+            WirelessRedstone.getLogger().error("Failed to load configuration, using defaults.", exception);
+        }
+
+        return config;
+    }
+
+    private Http http = new Http();
+    private Dispatcher dispatcher = new Dispatcher();
+    private Tick tick = new Tick();
+    private Storage storage = new Storage();
+    private Stream stream = new Stream();
+    private Outbox outbox = new Outbox();
+    private Limits limits = new Limits();
+    private Top top = new Top();
+    private Trace trace = new Trace();
+
+    /**
+     * Options for the HTTP server.
+     */
+    @Getter
+    public static final class Http {
+        /** The port the HTTP server listens on. */
+        private int port = 25564;
+        /** Other names of this server used in waypoint URLs, such as its public hostname. */
+        private List<String> hostnames = List.of();
+        /** Whether waypoints targeting an endpoint on this server change it directly instead of over HTTP. */
+        private boolean shortCircuit = true;
+    }
+
+    /**
+     * Options for outbound waypoint requests.
+     */
+    @Getter
+    public static final class Dispatcher {
+        /** The amount of requests which can be in flight at once. */
+        private int threads = 4;
+        /** The amount of requests which can be in flight to one host. */
+        private int perHost = 2;
+        /** The amount of requests which can wait to be sent. */
+        private int queueSize = 1024;
+        /** What to do when the queue is full. */
+        private WaypointDispatcher.OverflowPolicy overflow
+                = WaypointDispatcher.OverflowPolicy.COALESCE;
+        /** How long to wait for queued requests when stopping, in milliseconds. */
+        private long drainTimeout = 5000;
+        /** Options for sending events to the same URL together. */
+        private Batching batching = new Batching();
+        /** Options for failing fast when a host is down. */
+        private Breaker breaker = new Breaker();
+    }
+
+    /**
+     * Options for batched waypoint requests.
+     */
+    @Getter
+    public static final class Batching {
+        /** Whether batching is enabled. */
+        private boolean enabled = false;
+        /** The hosts which receive batches, or '*' for all hosts. */
+        private List<String> hosts = List.of();
+        /** How long a batch stays open, in milliseconds. */
+        private long window = 50;
+        /** The most events sent in one batch. */
+        private int maxEvents = 100;
+    }
+
+    /**
+     * Options for the circuit breakers and timeouts of waypoint hosts.
+     */
+    @Getter
+    public static final class Breaker {
+        /** Whether requests to failing hosts fail fast and timeouts adapt to each host. */
+        private boolean enabled = true;
+        /** The amount of failures in a row which open a host's breaker. */
+        private int failureThreshold = 5;
+        /** How long an open breaker fails requests before letting one through, in milliseconds. */
+        private long openTime = 5000;
+        /** The longest an open breaker waits while the host keeps failing, in milliseconds. */
+        private long maxOpenTime = 60000;
+        /** Timeouts are this multiple of the host's 99th percentile latency. */
+        private double timeoutMultiplier = 3;
+        /** The shortest timeout, in milliseconds. */
+        private long minTimeout = 250;
+        /** The longest timeout, used until a host's latency is known, in milliseconds. */
+        private long maxTimeout = 10000;
+    }
+
+    /**
+     * Options for changes applied on the server thread.
+     */
+    @Getter
+    public static final class Tick {
+        /** The amount of queued commands applied per tick. */
+        private int commandBudget = 256;
+        /** The amount of endpoints loaded or unloaded per tick when a player joins or leaves. */
+        private int spreadBudget = 64;
+        /** The most endpoints which can be changed by one batch request. */
+        private int batchLimit = 4096;
+        /** How often changed endpoint timers are saved, in ticks; timers set since are lost in a crash. */
+        private int timerSaveInterval = 100;
+    }
+
+    /**
+     * Options for the component journal.
+     */
+    @Getter
+    public static final class Storage {
+        /** The amount of superseded bytes before the journal is compacted. */
+        private long compactThreshold = 1024 * 1024;
+        /** How long to wait for more changes before writing, in milliseconds. */
+        private long flushInterval = 100;
+        /** Whether each batch of changes is synced to the disk. */
+        private boolean sync = true;
+    }
+
+    /**
+     * Options for the WebSocket state stream.
+     */
+    @Getter
+    public static final class Stream {
+        /** The amount of changes which can wait to be fanned out. */
+        private int queueLimit = 65536;
+        /** The amount of frames buffered per client before the oldest are dropped. */
+        private int clientBuffer = 256;
+        /** The most components and the most owners each client can subscribe to. */
+        private int maxSubscriptions = 1024;
+    }
+
+    /**
+     * Options for retrying failed waypoint requests.
+     */
+    @Getter
+    public static final class Outbox {
+        /** The size of the outbox file, in bytes. */
+        private int size = 8 * 1024 * 1024;
+        /** The most bytes of requests kept after all retries failed. */
+        private long deadLetterSize = 16 * 1024 * 1024;
+        /** The amount of attempts before a request is given up on. */
+        private int maxAttempts = 10;
+        /** The delay before the first retry, in milliseconds. */
+        private long baseDelay = 1000;
+        /** The longest delay between retries, in milliseconds. */
+        private long maxDelay = 5 * 60 * 1000;
+    }
+
+    /**
+     * Options for rate limiting HTTP requests.
+     * A rate of 0 disables that limit.
+     */
+    @Getter
+    public static final class Limits {
+        /** Whether requests are rate limited. */
+        private boolean enabled = true;
+        /** The requests per second to one endpoint. */
+        private double endpointRate = 10;
+        /** The requests to one endpoint allowed at once after being idle. */
+        private int endpointBurst = 20;
+        /** The requests per second to the endpoints of one player. */
+        private double ownerRate = 40;
+        /** The requests to the endpoints of one player allowed at once after being idle. */
+        private int ownerBurst = 80;
+        /** The requests per second from one remote address. */
+        private double addressRate = 40;
+        /** The requests from one remote address allowed at once after being idle. */
+        private int addressBurst = 80;
+        /**
+         * Addresses of gateways, whose requests are limited by the address they forward for.
+         * Only these may list components, as their UUIDs grant control over them.
+         */
+        private List<String> trustedProxies = List.of();
+        /** The most remote addresses tracked at once. */
+        private int maxAddresses = 65536;
+        /** How often idle limits are forgotten, in milliseconds. */
+        private long sweepInterval = 10000;
+    }
+
+    /**
+     * Options for tracking the busiest components.
+     */
+    @Getter
+    public static final class Top {
+        /** Whether requests and firings are counted. */
+        private boolean enabled = true;
+        /** The amount of components counted per bucket; components busier than 1 / capacity are always kept. */
+        private int capacity = 64;
+        /** The length of one bucket, in seconds. */
+        private int bucketLength = 10;
+        /** The amount of buckets kept, which limits the longest window which can be read. */
+        private int buckets = 30;
+    }
+
+    /**
+     * Options for recording traffic to replay later.
+     */
+    @Getter
+    public static final class Trace {
+        /** Whether traffic is recorded from startup; it can also be started with '/redstone trace start'. */
+        private boolean enabled = false;
+        /** The largest size of a trace, in bytes; recording stops once it is reached. */
+        private long maxSize = 268435456;
+    }
+}
@@ -1,8 +1,9 @@
 package moe.seikimo.wirelessredstone;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
-import lombok.SneakyThrows;
+import lombok.Setter;
 import net.minecraft.core.BlockPos;
 import net.minecraft.network.chat.Component;
 import net.minecraft.world.entity.item.ItemEntity;
@@ -10,8 +11,6 @@ import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.Blocks;
 
-import java.io.File;
-import java.nio.file.Files;
 import java.util.UUID;
 
 /**
@@ -40,33 +39,48 @@ public final class RedstoneEndpoint implements RedstoneComponent {
     @Getter private final Level world;
     @Getter private final BlockPos position;
 
-    @Getter private boolean enabled = false;
+    @Getter @Setter(AccessLevel.PACKAGE) private boolean enabled = false;
     @Getter private Player player = null;
 
     /**
      * Invoked once when the endpoint is loaded.
+     * Restores the block from the state recorded in the journal.
      */
     public void load(Player owner) {
         // Set the owner.
         this.player = owner;
 
-        // Check the current state of the block.
-        this.enabled = this.world.getBlockState(this.position)
-                .getBlock() == Blocks.REDSTONE_BLOCK;
+        // Restore the block at the end of the tick.
+        WirelessRedstone.getBlockUpdates().set(this.world, this.position,
+                this.enabled ? Blocks.REDSTONE_BLOCK.defaultBlockState()
+                        : Blocks.QUARTZ_BLOCK.defaultBlockState());
+        WirelessRedstone.getRegistry().getStates().changed(this);
+        WirelessRedstone.getStream().publish(this, this.owner, this.enabled);
     }
 
     /**
      * Invoked once when the endpoint is unloaded.
+     * The state is kept, so it is restored when the endpoint is loaded again.
      */
     public void unload() {
         // Set the owner to null.
         this.player = null;
 
-        // Set the state to false.
-        this.enabled = false;
+        // Publish the endpoint as unpowered.
+        WirelessRedstone.getRegistry().getStates().changed(this);
+        WirelessRedstone.getStream().publish(this, this.owner, false);
+
+        // Remove the block at the end of the tick.
+        WirelessRedstone.getBlockUpdates().set(this.world, this.position, Blocks.AIR.defaultBlockState());
+    }
 
-        // Remove the block.
-        this.world.setBlockAndUpdate(this.position, Blocks.AIR.defaultBlockState());
+    /**
+     * Checks if the owner of the endpoint is online.
+     *
+     * @return Whether the endpoint can be toggled.
+     */
+    public boolean isLoaded() {
+        return this.player != null;
     }
 
     /**
@@ -75,17 +89,31 @@ public final class RedstoneEndpoint implements RedstoneComponent {
      * @return True if enabled, false if disabled.
      */
     public boolean toggleState() {
+        return this.setState(!this.enabled);
+    }
+
+    /**
+     * Sets the state of the endpoint.
+     *
+     * @param enabled Whether the endpoint should be powered.
+     * @return True if enabled, false if disabled.
+     */
+    public boolean setState(boolean enabled) {
         // Check if the endpoint is loaded.
-        if (this.player == null)
+        if (!this.isLoaded())
             throw new RuntimeException("Endpoint is not loaded.");
 
-        // Toggle the state.
-        this.enabled = !this.enabled;
+        // Set the state.
+        this.enabled = enabled;
 
-        // Set the block state.
-        this.world.setBlockAndUpdate(this.position,
+        // Change the block at the end of the tick.
+        WirelessRedstone.getBlockUpdates().set(this.world, this.position,
                 this.enabled ? Blocks.REDSTONE_BLOCK.defaultBlockState()
                         : Blocks.QUARTZ_BLOCK.defaultBlockState());
+        // Record and publish the new state.
+        WirelessRedstone.getJournal().state(this.uuid, this.enabled);
+        WirelessRedstone.getRegistry().getStates().changed(this);
+        WirelessRedstone.getStream().publish(this, this.owner, this.enabled);
 
         return this.enabled;
     }
@@ -93,22 +121,19 @@ public final class RedstoneEndpoint implements RedstoneComponent {
     /**
      * Saves the endpoint.
      */
-    @SneakyThrows
     public void save() {
         // Add the endpoint to the list.
-        WirelessRedstone.getEndpoints().put(this.getPosition(), this);
-        WirelessRedstone.getUuidEndpoints().put(this.getUuid(), this);
-        // Save the endpoint to a file.
-        var file = new File(WirelessRedstone.getEndpointsDirectory(), this.uuid.toString());
-        Files.writeString(file.toPath(), this.toString());
+        WirelessRedstone.getRegistry().add(this);
+        // Save the endpoint to the journal.
+        WirelessRedstone.getJournal().write(this);
     }
 
     /**
      * Destroys the endpoint.
      */
     public void destroy() {
-        // Set the block state.
-        this.world.setBlockAndUpdate(this.position,
+        // Change the block at the end of the tick.
+        WirelessRedstone.getBlockUpdates().set(this.world, this.position,
                 Blocks.AIR.defaultBlockState());
 
         // Drop a redstone block and a quartz block at the position.
@@ -123,12 +148,9 @@ public final class RedstoneEndpoint implements RedstoneComponent {
         this.world.addFreshEntity(quartz);
 
         // Remove the endpoint from the list.
-        WirelessRedstone.getEndpoints().remove(this.getPosition());
-        WirelessRedstone.getUuidEndpoints().remove(this.getUuid());
-        // Remove the endpoint file.
-        var file = new File(WirelessRedstone.getEndpointsDirectory(), this.uuid.toString());
-        if (file.exists() && !file.delete())
-            throw new RuntimeException("Failed to delete endpoint file.");
+        WirelessRedstone.getRegistry().remove(this);
+        // Remove the endpoint from the journal.
+        WirelessRedstone.getJournal().delete(this.uuid);
 
         // Send a message to the owner.
         this.getPlayer().sendSystemMessage(Component.literal("Your endpoint at " +
@@ -139,8 +161,8 @@ public final class RedstoneEndpoint implements RedstoneComponent {
      * Places this waypoint.
      */
     public void place() {
-        // Set the block state.
-        this.world.setBlockAndUpdate(this.position,
+        // Change the block at the end of the tick.
+        WirelessRedstone.getBlockUpdates().set(this.world, this.position,
                 Blocks.QUARTZ_BLOCK.defaultBlockState());
     }
 
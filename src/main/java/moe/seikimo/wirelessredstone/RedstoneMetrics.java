@@ -0,0 +1,220 @@
+package moe.seikimo.wirelessredstone;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the mod.
+ * Recording is lock-free and does not allocate.
+ * Exported in the Prometheus text format.
+ */
+public final class RedstoneMetrics {
+    /** Latency from an HTTP request being queued to it being applied in a tick. */
+    private final Histogram applyLatency = new Histogram();
+    /** Latency of outbound waypoint requests. */
+    private final Histogram webhookLatency = new Histogram();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder shortCircuits = new LongAdder();
+    private final LongAdder webhookErrors = new LongAdder();
+    private final AtomicLongArray webhookStatus = new AtomicLongArray(600);
+    private final AtomicInteger webhooksInFlight = new AtomicInteger();
+
+    /** The time taken by each phase of loading components, in nanoseconds. */
+    private volatile long journalLoadTime, migrationTime;
+
+    /**
+     * Records a command applied by the tick queue.
+     *
+     * @param queued The {@link System#nanoTime()} when the command was queued.
+     */
+    public void applied(long queued) {
+        this.requests.increment();
+        this.applyLatency.record(System.nanoTime() - queued);
+    }
+
+    /**
+     * Records a waypoint which toggled an endpoint on this server without a request.
+     */
+    public void shortCircuited() {
+        this.shortCircuits.increment();
+    }
+
+    /**
+     * Records the start of an outbound waypoint request.
+     *
+     * @return The start time, to pass to {@link #webhookFinished(long, int)}.
+     */
+    public long webhookStarted() {
+        this.webhooksInFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the end of an outbound waypoint request.
+     *
+     * @param started The value returned by {@link #webhookStarted()}.
+     * @param status The response status code, or -1 if the request failed.
+     */
+    public void webhookFinished(long started, int status) {
+        this.webhooksInFlight.decrementAndGet();
+        this.webhookLatency.record(System.nanoTime() - started);
+
+        if (status >= 0 && status < 600) this.webhookStatus.incrementAndGet(status);
+        else this.webhookErrors.increment();
+    }
+
+    /**
+     * Records how long the component journal took to load.
+     *
+     * @param nanos The time taken, in nanoseconds.
+     */
+    public void setJournalLoadTime(long nanos) {
+        this.journalLoadTime = nanos;
+    }
+
+    /**
+     * Records how long components took to migrate from the old layout.
+     *
+     * @param nanos The time taken, in nanoseconds.
+     */
+    public void setMigrationTime(long nanos) {
+        this.migrationTime = nanos;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     *
+     * @return The metrics.
+     */
+    public String export() {
+        var output = new StringBuilder(4096);
+
+        counter(output, "redstone_commands_applied_total",
+                "Commands applied by the tick queue.", this.requests.sum());
+        counter(output, "redstone_requests_limited_total",
+                "HTTP requests rejected by a rate limit.", WirelessRedstone.getLimiter().getRejected().sum());
+        gauge(output, "redstone_rate_limits",
+                "Rate limit buckets being tracked.", WirelessRedstone.getLimiter().size());
+        this.applyLatency.export(output, "redstone_apply_latency_seconds",
+                "Time from an HTTP request being queued to being applied.");
+
+        // Outbound requests.
+        this.webhookLatency.export(output, "redstone_webhook_latency_seconds",
+                "Latency of waypoint requests.");
+        counter(output, "redstone_webhooks_short_circuited_total",
+                "Waypoint firings applied to a local endpoint without a request.", this.shortCircuits.sum());
+        gauge(output, "redstone_webhooks_in_flight",
+                "Waypoint requests being sent.", this.webhooksInFlight.get());
+        output.append("# HELP redstone_webhook_responses_total Waypoint responses by status code.\n")
+                .append("# TYPE redstone_webhook_responses_total counter\n");
+        for (var status = 0; status < this.webhookStatus.length(); status++) {
+            var count = this.webhookStatus.get(status);
+            if (count == 0) continue;
+
+            output.append("redstone_webhook_responses_total{code=\"").append(status)
+                    .append("\"} ").append(count).append('\n');
+        }
+        output.append("redstone_webhook_responses_total{code=\"error\"} ")
+                .append(this.webhookErrors.sum()).append('\n');
+
+        var dispatcher = WirelessRedstone.getDispatcher();
+        var outbox = WirelessRedstone.getOutbox();
+        counter(output, "redstone_webhooks_dropped_total",
+                "Waypoint requests dropped by the dispatcher.", dispatcher.getDropped().get());
+        counter(output, "redstone_webhooks_failed_total",
+                "Waypoint requests which failed on the first attempt.", dispatcher.getFailed().get());
+        counter(output, "redstone_webhooks_fast_failed_total",
+                "Waypoint requests not sent since their host's breaker was open.",
+                WirelessRedstone.getBreakers().getFastFailed().sum());
+        gauge(output, "redstone_webhook_breakers_open",
+                "Waypoint hosts whose breaker is open.", WirelessRedstone.getBreakers().open());
+        counter(output, "redstone_outbox_retries_total",
+                "Retries of failed waypoint requests.", outbox.getRetried().get());
+        counter(output, "redstone_outbox_dead_total",
+                "Waypoint requests given up on.", outbox.getDead().get());
+        counter(output, "redstone_outbox_dropped_total",
+                "Waypoint requests dropped by a full outbox.", outbox.getDropped().get());
+
+        // Queue depths.
+        gauge(output, "redstone_tick_queue_depth",
+                "Commands waiting to be applied.", WirelessRedstone.getTickQueue().size());
+        gauge(output, "redstone_dispatcher_queue_depth",
+                "Waypoint requests waiting to be sent.", dispatcher.getQueued());
+        gauge(output, "redstone_outbox_bytes",
+                "Bytes of waypoint requests waiting to be retried.", outbox.size());
+        gauge(output, "redstone_journal_backlog",
+                "Components with changes waiting to be written.", WirelessRedstone.getJournal().backlog());
+        gauge(output, "redstone_timers",
+                "Pending endpoint timers.", WirelessRedstone.getScheduler().size());
+        gauge(output, "redstone_stream_clients",
+                "Connected WebSocket clients.", WirelessRedstone.getStream().size());
+
+        // Registry sizes.
+        var registry = WirelessRedstone.getRegistry();
+        gauge(output, "redstone_endpoints",
+                "Registered endpoints.", registry.getEndpoints().size());
+        gauge(output, "redstone_waypoints",
+                "Registered waypoints.", registry.getWaypoints().size());
+
+        // Load times.
+        gauge(output, "redstone_journal_load_seconds",
+                "Time taken to load the component journal.", this.journalLoadTime / 1e9);
+        gauge(output, "redstone_migration_seconds",
+                "Time taken to migrate components from the old layout.", this.migrationTime / 1e9);
+
+        return output.toString();
+    }
+
+    private static void counter(StringBuilder output, String name, String help, long value) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder output, String name, String help, double value) {
+        output.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" gauge\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * A latency histogram with power-of-two buckets from 1 microsecond to about 16 seconds.
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 26;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * @param nanos The latency, in nanoseconds.
+         */
+        void record(long nanos) {
+            var micros = Math.max(0, nanos / 1000);
+            var bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+            this.counts.incrementAndGet(bucket);
+            this.sum.add(nanos);
+        }
+
+        void export(StringBuilder output, String name, String help) {
+            output.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                    .append("# TYPE ").append(name).append(" histogram\n");
+
+            // Bucket i holds latencies below 2^i microseconds.
+            var total = 0L;
+            for (var i = 0; i < BUCKETS; i++) {
+                total += this.counts.get(i);
+                output.append(name).append("_bucket{le=\"");
+                if (i == BUCKETS - 1) output.append("+Inf");
+                else output.append((1L << i) / 1e6);
+                output.append("\"} ").append(total).append('\n');
+            }
+
+            output.append(name).append("_sum ").append(this.sum.sum() / 1e9).append('\n')
+                    .append(name).append("_count ").append(total).append('\n');
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package moe.seikimo.wirelessredstone;
 
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles routing for redstone endpoints.
@@ -18,6 +24,157 @@ public interface RedstoneRouting {
         ctx.redirect("https://seikimo.moe/");
     }
 
+    /**
+     * Handles the metrics route.
+     *
+     * @route GET /metrics
+     * @param ctx The context.
+     */
+    static void metricsRoute(Context ctx) {
+        ctx.contentType("text/plain; version=0.0.4")
+                .result(WirelessRedstone.getMetrics().export());
+    }
+
+    /**
+     * Handles the state route.
+     * Reads the state from the last published snapshot, without waiting for a tick.
+     *
+     * @route GET /{id}/state
+     * @param ctx The context.
+     */
+    static void stateRoute(Context ctx) {
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(ctx.pathParam("id"));
+        } catch (IllegalArgumentException ignored) {
+            ctx.status(404).result("Invalid UUID.");
+            return;
+        }
+
+        var states = WirelessRedstone.getRegistry().getStates();
+        var snapshot = states.snapshot();
+        if (RedstoneRouting.notModified(ctx, snapshot)) return;
+
+        var state = states.get(snapshot, uuid);
+        if (state == null) ctx.status(404).result("Component not found.");
+        else ctx.result(state.toString());
+    }
+
+    /**
+     * Handles the bulk state route.
+     * Reads the given components from the last published snapshot.
+     * Trusted addresses may leave out the IDs to read all components, as the UUIDs grant control.
+     * The response holds one '<uuid> <true|false|missing>' pair per line.
+     *
+     * @route GET /state?id={id}&id={id}
+     * @param ctx The context.
+     */
+    static void statesRoute(Context ctx) {
+        var ids = ctx.queryParams("id");
+        if (ids.isEmpty() && !RedstoneRouting.trusted(ctx)) return;
+
+        var states = WirelessRedstone.getRegistry().getStates();
+        var snapshot = states.snapshot();
+        if (RedstoneRouting.notModified(ctx, snapshot)) return;
+
+        var body = new StringBuilder(Math.max(ids.size(), 16) * 46);
+        if (ids.isEmpty()) {
+            // Read every component in the snapshot.
+            var components = snapshot.components();
+            for (var id = 0; id < components.length; id++) {
+                if (components[id] == null) continue;
+                body.append(components[id].getUuid()).append(' ')
+                        .append(snapshot.state(id)).append('\n');
+            }
+        } else {
+            for (var id : ids) {
+                Boolean state;
+                try {
+                    state = states.get(snapshot, UUID.fromString(id));
+                } catch (IllegalArgumentException ignored) {
+                    state = null;
+                }
+
+                body.append(id).append(' ')
+                        .append(state == null ? "missing" : state.toString()).append('\n');
+            }
+        }
+
+        ctx.result(body.toString());
+    }
+
+    /**
+     * Handles the registry route, which gateways poll to learn which endpoints this server hosts.
+     * Responds with the changes since the given version, or every endpoint if the version is
+     * too old or from an earlier run. The 'X-Registry-Full' header tells which.
+     * Only served to trusted addresses, as the UUIDs grant control over the endpoints.
+     *
+     * @route GET /registry?epoch={epoch}&since={version}
+     * @param ctx The context.
+     */
+    static void registryRoute(Context ctx) {
+        if (!RedstoneRouting.trusted(ctx)) return;
+
+        var since = -1L;
+        try {
+            var param = ctx.queryParam("since");
+            if (param != null) since = Long.parseLong(param);
+        } catch (NumberFormatException ignored) {
+            // Send every endpoint.
+        }
+
+        var changes = WirelessRedstone.getRegistry().getFeed().read(ctx.queryParam("epoch"), since);
+        ctx.header("X-Registry-Epoch", changes.epoch())
+                .header("X-Registry-Version", Long.toString(changes.version()))
+                .header("X-Registry-Full", Boolean.toString(changes.full()))
+                .result(changes.body());
+    }
+
+    /**
+     * Handles the top route, which lists the busiest components.
+     * Lists each kind, or only the given kind, under a '# <kind>' line.
+     * Each component is a '<uuid> <count> <error> <rate>' line, busiest first;
+     * the rate is per second over the window.
+     * Only served to trusted addresses, like the command is only for operators, as it lists UUIDs.
+     *
+     * @route GET /top?kind={endpoints|waypoints|owners}&window={seconds}&count={count}
+     * @param ctx The context.
+     */
+    static void topRoute(Context ctx) {
+        if (!RedstoneRouting.trusted(ctx)) return;
+
+        var hotSpots = WirelessRedstone.getHotSpots();
+
+        List<HotSpots.Kind> kinds;
+        long window;
+        int count;
+        try {
+            var kind = ctx.queryParam("kind");
+            kinds = kind == null ? List.of(HotSpots.Kind.values())
+                    : List.of(HotSpots.Kind.valueOf(kind.toUpperCase()));
+
+            var param = ctx.queryParam("window");
+            window = param == null ? 60 : Long.parseLong(param);
+            param = ctx.queryParam("count");
+            count = param == null ? 10 : Integer.parseInt(param);
+            if (window < 1 || count < 1) throw new NumberFormatException();
+        } catch (IllegalArgumentException ignored) {
+            ctx.status(400).result("Invalid kind, window or count.");
+            return;
+        }
+
+        var body = new StringBuilder();
+        for (var kind : kinds) {
+            body.append("# ").append(kind.name().toLowerCase()).append('\n');
+            for (var entry : hotSpots.top(kind, Math.min(count, 1000), window))
+                body.append(entry.uuid()).append(' ').append(entry.count())
+                        .append(' ').append(entry.error())
+                        .append(' ').append(Math.round(entry.rate() * 1000) / 1000.0).append('\n');
+        }
+
+        ctx.result(body.toString());
+    }
+
     /**
      * Handles the toggle route.
      *
@@ -25,24 +182,353 @@ public interface RedstoneRouting {
      * @param ctx The context.
      */
     static void toggleRoute(Context ctx) {
+        WirelessRedstone.getTrace().toggle(ctx.pathParam("id"));
+        var endpoint = RedstoneRouting.endpoint(ctx);
+        if (endpoint == null) return;
+
+        // Toggle the state on the next tick.
+        ctx.future(() -> WirelessRedstone.getTickQueue().toggle(endpoint)
+                .thenAccept(state -> ctx.result(Boolean.toString(state)))
+                .exceptionally(exception -> {
+                    ctx.status(400).result("Endpoint not loaded.");
+                    return null;
+                }));
+    }
+
+    /**
+     * Handles the pulse route.
+     * Turns the endpoint on, and off again after the given amount of ticks.
+     * Responds with the ID of the timer which turns the endpoint off.
+     *
+     * @route GET /{id}/pulse/{ticks}
+     * @param ctx The context.
+     */
+    static void pulseRoute(Context ctx) {
+        WirelessRedstone.getTrace().pulse(ctx.pathParam("id"), ctx.pathParam("ticks"));
+        var endpoint = RedstoneRouting.endpoint(ctx);
+        if (endpoint == null) return;
+
+        long ticks;
+        try {
+            ticks = Long.parseLong(ctx.pathParam("ticks"));
+            if (ticks < 1) throw new NumberFormatException();
+        } catch (NumberFormatException ignored) {
+            ctx.status(400).result("Invalid tick count.");
+            return;
+        }
+
+        // Turn the endpoint on now, and schedule turning it off.
+        ctx.future(() -> WirelessRedstone.getTickQueue().submit(endpoint, TickQueue.Action.ON)
+                .thenAccept(state -> ctx.result(Long.toString(WirelessRedstone.getScheduler()
+                        .schedule(ticks, endpoint.getUuid(), TickQueue.Action.OFF).getId())))
+                .exceptionally(exception -> {
+                    ctx.status(400).result("Endpoint not loaded.");
+                    return null;
+                }));
+    }
+
+    /**
+     * Handles the tick route, which tells clients the tick to schedule the endpoint's changes against.
+     * Responds with '<epoch> <tick>' of the server hosting the endpoint; the epoch changes with
+     * every start, as ticks count from zero.
+     *
+     * @route GET /{id}/tick
+     * @param ctx The context.
+     */
+    static void tickRoute(Context ctx) {
+        if (RedstoneRouting.endpoint(ctx) == null) return;
+
+        var scheduler = WirelessRedstone.getScheduler();
+        ctx.result(scheduler.getEpoch() + " " + scheduler.getTick());
+    }
+
+    /**
+     * Handles the schedule route.
+     * Changes the endpoint at the given tick of the epoch read from its tick route.
+     * Responds with the ID of the timer, or 409 with the current '<epoch> <tick>'
+     * if the epoch is from an earlier run.
+     *
+     * @route GET /{id}/schedule/{state}/{tick}?epoch={epoch}
+     * @param ctx The context.
+     */
+    static void scheduleRoute(Context ctx) {
+        WirelessRedstone.getTrace().schedule(ctx.pathParam("id"),
+                ctx.pathParam("state"), ctx.pathParam("tick"));
+        var endpoint = RedstoneRouting.endpoint(ctx);
+        if (endpoint == null) return;
+
+        TickQueue.Action action;
+        long tick;
+        try {
+            action = TickQueue.Action.valueOf(ctx.pathParam("state").toUpperCase());
+            tick = Long.parseLong(ctx.pathParam("tick"));
+        } catch (IllegalArgumentException ignored) {
+            ctx.status(400).result("Invalid state or tick.");
+            return;
+        }
+
+        // Ticks from another run mean a different moment.
+        var scheduler = WirelessRedstone.getScheduler();
+        if (!scheduler.getEpoch().equals(ctx.queryParam("epoch"))) {
+            ctx.status(409).result(scheduler.getEpoch() + " " + scheduler.getTick());
+            return;
+        }
+
+        var timer = scheduler.schedule(tick - scheduler.getTick(), endpoint.getUuid(), action);
+        ctx.result(Long.toString(timer.getId()));
+    }
+
+    /**
+     * Handles the timer cancel route.
+     * Only cancels timers of the endpoint in the path.
+     *
+     * @route DELETE /{id}/timer/{timer}
+     * @param ctx The context.
+     */
+    static void cancelRoute(Context ctx) {
+        var endpoint = RedstoneRouting.endpoint(ctx);
+        if (endpoint == null) return;
+
         try {
-            // Get the UUID.
-            var id = ctx.pathParam("id");
-            var uuid = UUID.fromString(id);
+            var cancelled = WirelessRedstone.getScheduler()
+                    .cancel(Long.parseLong(ctx.pathParam("timer")), endpoint.getUuid());
+            ctx.status(cancelled ? 200 : 404).result(Boolean.toString(cancelled));
+        } catch (NumberFormatException ignored) {
+            ctx.status(400).result("Invalid timer.");
+        }
+    }
+
+    /**
+     * Handles the batch route.
+     * The body holds one '<uuid> <on|off|toggle>' pair per line.
+     * The response holds one '<uuid> <result>' pair per line, in the same order.
+     * Endpoints over their rate limit are skipped and reported as 'limited'.
+     *
+     * @route POST /batch
+     * @param ctx The context.
+     */
+    static void batchRoute(Context ctx) {
+        if (!RedstoneRouting.admit(ctx)) return;
+
+        var limiter = WirelessRedstone.getLimiter();
+        var hotSpots = WirelessRedstone.getHotSpots();
+        var trace = WirelessRedstone.getTrace();
+        var registry = WirelessRedstone.getRegistry();
+        var limit = WirelessRedstone.getConfig().getTick().getBatchLimit();
+
+        var uuids = new ArrayList<UUID>();
+        var results = new ArrayList<String>();
+        var endpoints = new ArrayList<RedstoneEndpoint>();
+        var actions = new ArrayList<TickQueue.Action>();
+        var requested = trace.isRecording() ? new ArrayList<TickQueue.Action>() : null;
+
+        try {
+            // Read the requested changes.
+            var reader = new BatchReader(ctx.bodyInputStream());
+            while (reader.next()) {
+                if (reader.getCount() > limit) {
+                    ctx.status(413).result("Too many items; the limit is " + limit + ".");
+                    return;
+                }
+
+                var uuid = reader.uuid();
+                var endpoint = registry.getEndpoint(uuid);
+                uuids.add(uuid);
+                if (requested != null) requested.add(reader.getAction());
+                if (endpoint != null) hotSpots.requested(endpoint);
+
+                // Skip endpoints which are over their limit.
+                if (endpoint == null) results.add("missing");
+                else if (limiter.admit(endpoint) > 0) {
+                    results.add("limited");
+                    endpoint = null;
+                } else results.add(null);
+
+                if (endpoint != null) {
+                    endpoints.add(endpoint);
+                    actions.add(reader.getAction());
+                }
+            }
+        } catch (IOException | IllegalArgumentException exception) {
+            ctx.status(400).result(exception.getMessage() == null ?
+                    "Invalid batch." : exception.getMessage());
+            return;
+        }
+
+        if (requested != null) trace.batch(uuids, requested);
+
+        // Apply all changes in the same tick.
+        var futures = WirelessRedstone.getTickQueue().submitAll(endpoints, actions);
+        ctx.future(() -> CompletableFuture.allOf(futures.stream()
+                        .map(future -> future.handle((state, exception) -> null))
+                        .toArray(CompletableFuture[]::new))
+                .thenRun(() -> ctx.result(RedstoneRouting.batchResult(uuids, results, futures))));
+    }
+
+    /**
+     * Checks the rate limit of the remote address.
+     * Responds with 429 if it is over the limit.
+     *
+     * @param ctx The context.
+     * @return Whether the request may continue.
+     */
+    private static boolean admit(Context ctx) {
+        return RedstoneRouting.admitted(ctx, WirelessRedstone.getLimiter().admit(RedstoneRouting.address(ctx)));
+    }
+
+    /**
+     * Finds the address of the client.
+     * Requests from trusted proxies, such as a gateway, are attributed to the client they forward for.
+     *
+     * @param ctx The context.
+     * @return The remote address.
+     */
+    private static String address(Context ctx) {
+        var address = ctx.ip();
+        if (!WirelessRedstone.getConfig().getLimits().getTrustedProxies().contains(address))
+            return address;
+
+        var forwarded = ctx.header("X-Forwarded-For");
+        if (forwarded == null) return address;
+
+        // The last address was added by the trusted proxy.
+        var last = forwarded.lastIndexOf(',');
+        return forwarded.substring(last + 1).trim();
+    }
+
+    /**
+     * Checks if an address is trusted, such as a gateway.
+     * Only trusted addresses may list components, as their UUIDs grant control over them.
+     *
+     * @param address The remote address of the connection.
+     * @return Whether the address is trusted.
+     */
+    static boolean trusted(String address) {
+        return WirelessRedstone.getConfig().getLimits().getTrustedProxies().contains(address);
+    }
+
+    /**
+     * Checks that the client is a trusted address, such as a gateway.
+     * Responds with 403 otherwise.
+     *
+     * @param ctx The context.
+     * @return Whether the request may continue.
+     */
+    private static boolean trusted(Context ctx) {
+        if (RedstoneRouting.trusted(ctx.ip())) return true;
+
+        ctx.status(403).result("Only trusted addresses may list components.");
+        return false;
+    }
+
+    /**
+     * Responds with 429 if a rate limit was hit.
+     *
+     * @param ctx The context.
+     * @param wait The nanoseconds until the limit allows another request.
+     * @return Whether the request may continue.
+     */
+    private static boolean admitted(Context ctx, long wait) {
+        if (wait <= 0) return true;
 
-            // Get the endpoint.
-            var endpoint = WirelessRedstone.getUuidEndpoints().get(uuid);
-            if (endpoint == null) {
+        var seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + 999_999_999));
+        ctx.header(Header.RETRY_AFTER, Long.toString(seconds));
+        ctx.status(429).result("Too many requests.");
+        return false;
+    }
+
+    /**
+     * Resolves the endpoint in the 'id' path parameter.
+     * Responds with 404 if it does not exist, or 429 if it is over a rate limit.
+     * The remote address is limited before the endpoint is looked up.
+     *
+     * @param ctx The context.
+     * @return The endpoint, or null.
+     */
+    private static RedstoneEndpoint endpoint(Context ctx) {
+        if (!RedstoneRouting.admit(ctx)) return null;
+
+        try {
+            var resolved = RedstoneRouting.resolve(UUID.fromString(ctx.pathParam("id")));
+            if (resolved.endpoint() == null) {
                 ctx.status(404).result("Endpoint not loaded.");
-                return;
+                return null;
             }
 
-            // Toggle the state.
-            ctx.result(Boolean.toString(endpoint.toggleState()));
+            return RedstoneRouting.admitted(ctx, resolved.delay()) ? resolved.endpoint() : null;
         } catch (IllegalArgumentException ignored) {
             ctx.status(404).result("Invalid UUID.");
-        } catch (RuntimeException ignored) {
-            ctx.status(400).result("Endpoint not loaded.");
+            return null;
         }
     }
+
+    /**
+     * Looks up an endpoint named by a client, counts the request and checks the limits
+     * of the endpoint and its owner. Used by the routes and the state stream.
+     *
+     * @param uuid The UUID of the endpoint.
+     * @return The endpoint, or a null endpoint if it does not exist.
+     */
+    static Resolved resolve(UUID uuid) {
+        var endpoint = WirelessRedstone.getRegistry().getEndpoint(uuid);
+        if (endpoint == null) return new Resolved(null, 0);
+
+        WirelessRedstone.getHotSpots().requested(endpoint);
+        return new Resolved(endpoint, WirelessRedstone.getLimiter().admit(endpoint));
+    }
+
+    /**
+     * Tags the response with the epoch and tick of a snapshot.
+     * Responds with 304 if the client already has that snapshot.
+     *
+     * @param ctx The context.
+     * @param snapshot The snapshot being read.
+     * @return Whether the response is complete.
+     */
+    private static boolean notModified(Context ctx, StateTable.Snapshot snapshot) {
+        var etag = snapshot.etag();
+        ctx.header(Header.ETAG, etag);
+        ctx.header(Header.CACHE_CONTROL, "no-cache");
+
+        var match = ctx.header(Header.IF_NONE_MATCH);
+        if (match == null || !(match.equals("*") || match.contains(etag))) return false;
+
+        ctx.status(304);
+        return true;
+    }
+
+    /**
+     * Formats the results of a batch request.
+     *
+     * @param uuids The UUIDs in the request.
+     * @param results The results known before applying, null where pending.
+     * @param futures The futures of the applied changes, in order.
+     * @return The response body.
+     */
+    private static String batchResult(List<UUID> uuids, List<String> results,
+                                      List<CompletableFuture<Boolean>> futures) {
+        var body = new StringBuilder(uuids.size() * 46);
+        var applied = futures.iterator();
+
+        for (var i = 0; i < uuids.size(); i++) {
+            var result = results.get(i);
+            if (result == null) {
+                var future = applied.next();
+                result = future.isCompletedExceptionally() ?
+                        "unloaded" : Boolean.toString(future.join());
+            }
+
+            body.append(uuids.get(i)).append(' ').append(result).append('\n');
+        }
+
+        return body.toString();
+    }
+
+    /**
+     * An endpoint named by a client.
+     *
+     * @param endpoint The endpoint, or null if it does not exist.
+     * @param delay 0 if admitted, otherwise the nanoseconds to wait before retrying.
+     */
+    record Resolved(RedstoneEndpoint endpoint, long delay) { }
 }
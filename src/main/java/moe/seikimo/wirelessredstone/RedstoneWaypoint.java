@@ -2,33 +2,51 @@ package moe.seikimo.wirelessredstone;
 
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
-import lombok.SneakyThrows;
 import net.minecraft.core.BlockPos;
 import net.minecraft.world.entity.item.ItemEntity;
 import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.Blocks;
-import okhttp3.Request;
+import net.minecraft.world.level.block.RedstoneLampBlock;
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
+import okhttp3.HttpUrl;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.util.UUID;
 
 @RequiredArgsConstructor
 public final class RedstoneWaypoint implements RedstoneComponent {
+    /**
+     * How lamp changes turn into waypoint requests.
+     */
+    public enum Mode {
+        /** Send a request for every change. */
+        EVERY_EDGE,
+        /** Send a request only when the lamp turns on. */
+        RISING_EDGE,
+        /** Send the latest state once the lamp has not changed for the interval. */
+        DEBOUNCE,
+        /** Send at most one request per interval, with the latest state. */
+        RATE_LIMIT
+    }
+
     /**
      * Parses a string into a RedstoneWaypoint.
+     * Reads the format written by {@link #toString()}; the URL is last and may contain commas.
      *
      * @param waypoint The string to parse.
      * @return The parsed RedstoneWaypoint.
      */
     public static RedstoneWaypoint of(String waypoint) {
+        var parts = waypoint.split(",", 7);
         return new RedstoneWaypoint(
-                UUID.fromString(waypoint.split(",")[0]),
-                UUID.fromString(waypoint.split(",")[1]),
-                waypoint.split(",")[2],
-                Serialize.parseLevel(waypoint.split(",")[3]),
-                Serialize.parsePosition(waypoint, 4)
+                UUID.fromString(parts[0]),
+                UUID.fromString(parts[1]),
+                parts[6],
+                Serialize.parseLevel(parts[2]),
+                Serialize.parsePosition(waypoint, 3)
         );
     }
 
@@ -38,36 +56,122 @@ public final class RedstoneWaypoint implements RedstoneComponent {
     @Getter private final Level world;
     @Getter private final BlockPos position;
 
+    /** The endpoint on this server targeted by the URL, or null if the URL is remote. */
+    @Getter(lazy = true) private final UUID localTarget = RedstoneWaypoint.localTarget(this.endpoint);
+
+    @Getter private Mode mode = Mode.EVERY_EDGE;
+    @Getter private int modeTicks = 0;
+
+    /** Server thread state used by the firing modes. */
+    private boolean latest = false;
+    private long lastFired = Long.MIN_VALUE;
+    private TickScheduler.Timer pending = null;
+
     /**
-     * Invokes this waypoint.
+     * Invokes this waypoint with the current state of the lamp.
      */
     public void invoke() {
-        new Thread(this::invoke$1).start();
+        var state = this.world.getBlockState(this.position);
+        this.invoke(state.hasProperty(RedstoneLampBlock.LIT)
+                && state.getValue(RedstoneLampBlock.LIT));
     }
 
     /**
      * Invokes this waypoint.
+     *
+     * @param lit Whether the lamp is lit.
      */
-    private void invoke$1() {
-        try {
-            var request = new Request.Builder()
-                    .url(this.endpoint).build();
-            var response = WirelessRedstone.getHttpClient()
-                    .newCall(request).execute();
-            response.close();
-        } catch (IllegalArgumentException | IOException ignored) { }
+    public void invoke(boolean lit) {
+        WirelessRedstone.getStream().publish(this, this.owner, lit);
+
+        var scheduler = WirelessRedstone.getScheduler();
+        this.latest = lit;
+        WirelessRedstone.getRegistry().getStates().changed(this);
+
+        switch (this.mode) {
+            case EVERY_EDGE -> this.fire();
+            case RISING_EDGE -> {
+                if (lit) this.fire();
+            }
+            case DEBOUNCE -> {
+                // Restart the quiet period on every change.
+                if (this.pending != null) scheduler.cancel(this.pending);
+                this.pending = scheduler.schedule(this.modeTicks, this::fire);
+            }
+            case RATE_LIMIT -> {
+                // Fire now if the interval has passed, otherwise once it does.
+                var wait = this.lastFired + this.modeTicks - scheduler.getTick();
+                if (wait <= 0) this.fire();
+                else if (this.pending == null)
+                    this.pending = scheduler.schedule(wait, this::fire);
+            }
+        }
+    }
+
+    /**
+     * @return Whether the lamp was lit when the waypoint was last invoked.
+     */
+    public boolean isLit() {
+        return this.latest;
+    }
+
+    /**
+     * Sends a request with the latest state.
+     * Toggles the target directly if it is an endpoint on this server.
+     */
+    private void fire() {
+        this.pending = null;
+        this.lastFired = WirelessRedstone.getScheduler().getTick();
+        WirelessRedstone.getHotSpots().fired(this);
+        WirelessRedstone.getTrace().fired(this, this.latest);
+
+        var target = this.getLocalTarget();
+        if (target == null) {
+            WirelessRedstone.getDispatcher().submit(this, this.latest);
+            return;
+        }
+
+        // Queue the toggle, which is applied at the end of this tick.
+        var endpoint = WirelessRedstone.getRegistry().getEndpoint(target);
+        if (endpoint != null && endpoint.isLoaded()) {
+            WirelessRedstone.getMetrics().shortCircuited();
+            WirelessRedstone.getTickQueue().toggle(endpoint);
+        }
+    }
+
+    /**
+     * Sets how lamp changes turn into requests.
+     *
+     * @param mode The firing mode.
+     * @param ticks The interval used by the debounce and rate limit modes.
+     */
+    public void setMode(Mode mode, int ticks) {
+        this.restoreMode(mode, ticks);
+        WirelessRedstone.getJournal().mode(this.uuid, mode, ticks);
+    }
+
+    /**
+     * Sets the firing mode without recording it.
+     * Used when loading the waypoint.
+     */
+    void restoreMode(Mode mode, int ticks) {
+        this.mode = mode;
+        this.modeTicks = Math.max(0, ticks);
+
+        if (this.pending != null) {
+            WirelessRedstone.getScheduler().cancel(this.pending);
+            this.pending = null;
+        }
     }
 
     /**
      * Saves the waypoint.
      */
-    @SneakyThrows
     public void save() {
         // Add the waypoint to the list.
-        WirelessRedstone.getWaypoints().put(this.getPosition(), this);
-        // Save the endpoint file.
-        var file = new File(WirelessRedstone.getWaypointsDirectory(), this.uuid.toString());
-        Files.writeString(file.toPath(), this.toString());
+        WirelessRedstone.getRegistry().add(this);
+        // Save the waypoint to the journal.
+        WirelessRedstone.getJournal().write(this);
     }
 
     /**
@@ -85,11 +189,9 @@ public final class RedstoneWaypoint implements RedstoneComponent {
         this.world.addFreshEntity(redstoneLamp);
 
         // Remove the waypoint from the list.
-        WirelessRedstone.getWaypoints().remove(this.getPosition());
-        // Remove the endpoint file.
-        var file = new File(WirelessRedstone.getWaypointsDirectory(), this.uuid.toString());
-        if (file.exists() && !file.delete())
-            throw new RuntimeException("Failed to delete file: " + file.getPath());
+        WirelessRedstone.getRegistry().remove(this);
+        // Remove the waypoint from the journal.
+        WirelessRedstone.getJournal().delete(this.uuid);
     }
 
     /**
@@ -101,6 +203,56 @@ public final class RedstoneWaypoint implements RedstoneComponent {
                 Blocks.REDSTONE_LAMP.defaultBlockState());
     }
 
+    /**
+     * Invoked by the lamp hook whenever a redstone lamp changes.
+     * Most lamps are rejected by the registry's filter without a lookup or allocation.
+     *
+     * @param level The level of the lamp.
+     * @param position The position of the lamp.
+     * @param lit Whether the lamp is now lit.
+     */
+    public static void lampChanged(Level level, BlockPos position, boolean lit) {
+        var registry = WirelessRedstone.getRegistry();
+        if (!registry.mightHaveWaypoint(level, position)) return;
+
+        var waypoint = registry.getWaypoint(level, position);
+        if (waypoint != null) waypoint.invoke(lit);
+    }
+
+    /**
+     * Finds the endpoint on this server which a URL toggles.
+     * Only literal addresses and configured hostnames are matched, so nothing is resolved.
+     *
+     * @param url The URL of a waypoint.
+     * @return The UUID of the endpoint, or null if the URL is remote.
+     */
+    static UUID localTarget(String url) {
+        var config = WirelessRedstone.getConfig().getHttp();
+        var parsed = HttpUrl.parse(url);
+        if (!config.isShortCircuit() || parsed == null || parsed.port() != config.getPort()
+                || parsed.pathSize() != 1) return null;
+
+        // Check if the host is this server.
+        var host = parsed.host();
+        if (!host.equals("localhost") && !config.getHostnames().contains(host)) {
+            try {
+                if (!host.contains(":") && !host.matches("[0-9.]+")) return null;
+
+                var address = InetAddress.getByName(host);
+                if (!address.isLoopbackAddress() && !address.isAnyLocalAddress()
+                        && NetworkInterface.getByInetAddress(address) == null) return null;
+            } catch (UnknownHostException | SocketException ignored) {
+                return null;
+            }
+        }
+
+        try {
+            return UUID.fromString(parsed.pathSegments().get(0));
+        } catch (IllegalArgumentException ignored) {
+            return null;
+        }
+    }
+
     /**
      * Checks if the waypoint is owned by the player.
      *
@@ -0,0 +1,93 @@
+package moe.seikimo.wirelessredstone;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Versioned log of endpoints being added and removed, read by gateways.
+ * Every change increments the version; a reader which knows an older version
+ * reads only the changes since, or the full listing once those were forgotten.
+ * The epoch changes with every start, so readers notice restarts.
+ */
+public final class RegistryFeed {
+    /** The amount of changes remembered. */
+    private static final int CAPACITY = 8192;
+
+    private final ComponentRegistry registry;
+    private final String epoch = Long.toHexString(System.nanoTime() ^ UUID.randomUUID().getMostSignificantBits());
+    private final ArrayDeque<String> changes = new ArrayDeque<>();
+    private long version = 0;
+
+    RegistryFeed(ComponentRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Records an endpoint being added.
+     *
+     * @param uuid The UUID of the endpoint.
+     */
+    synchronized void added(UUID uuid) {
+        this.record("+" + uuid);
+    }
+
+    /**
+     * Records an endpoint being removed.
+     *
+     * @param uuid The UUID of the endpoint.
+     */
+    synchronized void removed(UUID uuid) {
+        this.record("-" + uuid);
+    }
+
+    /**
+     * Reads the changes since a version.
+     * Lines are '+<uuid>' for added and '-<uuid>' for removed endpoints.
+     *
+     * @param epoch The epoch the reader knows, or null.
+     * @param since The version the reader knows.
+     * @return The changes, or the full listing if the reader is too far behind.
+     */
+    public Changes read(String epoch, long since) {
+        long version;
+        synchronized (this) {
+            version = this.version;
+
+            // Only changes since a version of this run can be sent.
+            var forgotten = this.version - this.changes.size();
+            if (this.epoch.equals(epoch) && since >= forgotten && since <= this.version) {
+                var body = new StringBuilder((int) (this.version - since) * 38);
+                var skip = since - forgotten;
+                for (var change : this.changes) {
+                    if (skip-- > 0) continue;
+                    body.append(change).append('\n');
+                }
+
+                return new Changes(this.epoch, version, false, body.toString());
+            }
+        }
+
+        // List every endpoint, as of the version read above or later.
+        var body = new StringBuilder(this.registry.getEndpoints().size() * 38);
+        for (var endpoint : this.registry.getEndpoints())
+            body.append('+').append(endpoint.getUuid()).append('\n');
+
+        return new Changes(this.epoch, version, true, body.toString());
+    }
+
+    private void record(String change) {
+        if (this.changes.size() == CAPACITY) this.changes.poll();
+        this.changes.add(change);
+        this.version++;
+    }
+
+    /**
+     * A response to a reader.
+     *
+     * @param epoch The epoch of this run.
+     * @param version The version after the changes.
+     * @param full Whether the body lists every endpoint.
+     * @param body The changes, one per line.
+     */
+    public record Changes(String epoch, long version, boolean full, String body) {}
+}
@@ -28,15 +28,17 @@ public interface Serialize {
 
     /**
      * Parses a level from a string.
+     * Accepts both 'namespace:path' and the 'registry:namespace:path' form.
      *
      * @param level The string to parse.
      * @return The parsed level.
      */
     static Level parseLevel(String level) {
+        var parts = level.split(":");
         return WirelessRedstone.getServer().getLevel(
                 ResourceKey.create(Registries.DIMENSION, new ResourceLocation(
-                        level.split(":")[0],
-                        level.split(":")[1]
+                        parts[parts.length - 2],
+                        parts[parts.length - 1]
                 ))
         );
     }
@@ -0,0 +1,262 @@
+package moe.seikimo.wirelessredstone;
+
+import io.javalin.websocket.WsConfig;
+import io.javalin.websocket.WsMessageContext;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes component state changes to WebSocket clients.
+ * Changes are published from the server thread and fanned out on a separate thread.
+ *
+ * Clients send text commands:
+ * 'sub <uuid>', 'sub owner <uuid>', 'unsub <uuid>', 'unsub owner <uuid>'
+ * and 'set <uuid> <on|off|toggle>'. Only trusted addresses may subscribe to owners,
+ * as the changes reveal the UUIDs of their components.
+ * Changes are sent as 'e <uuid> <0|1>' for endpoints and 'w <uuid> <0|1>' for waypoints.
+ * Connections and sets are rate limited like HTTP requests; a limited set is answered with
+ * 'err <uuid> limited <milliseconds to wait>'.
+ */
+public final class StateStream {
+    private final RedstoneConfig.Stream config;
+
+    private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Map<Session, Client> clients = new ConcurrentHashMap<>();
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    public StateStream(RedstoneConfig.Stream config) {
+        this.config = config;
+
+        this.thread = new Thread(this::run, "State Stream");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Publishes a state change.
+     * Never blocks; changes are dropped if the fan-out thread falls too far behind.
+     *
+     * @param component The component which changed.
+     * @param owner The owner of the component.
+     * @param state The new state.
+     */
+    public void publish(RedstoneComponent component, UUID owner, boolean state) {
+        if (this.clients.isEmpty()) return;
+        if (this.pending.incrementAndGet() > this.config.getQueueLimit()) {
+            this.pending.decrementAndGet();
+            return;
+        }
+
+        var kind = component instanceof RedstoneEndpoint ? 'e' : 'w';
+        this.changes.add(new Change(kind, component.getUuid(), owner, state));
+        LockSupport.unpark(this.thread);
+    }
+
+    /**
+     * Registers the WebSocket handlers.
+     *
+     * @param ws The WebSocket configuration.
+     */
+    public void configure(WsConfig ws) {
+        ws.onConnect(ctx -> {
+            var client = new Client(ctx.session);
+            if (WirelessRedstone.getLimiter().admit(client.address) > 0) {
+                ctx.closeSession(1013, "Too many requests.");
+                return;
+            }
+
+            this.clients.put(ctx.session, client);
+        });
+        ws.onClose(ctx -> this.clients.remove(ctx.session));
+        ws.onError(ctx -> this.clients.remove(ctx.session));
+        ws.onMessage(this::receive);
+    }
+
+    /**
+     * Stops the fan-out thread.
+     */
+    public void close() {
+        this.running = false;
+        LockSupport.unpark(this.thread);
+    }
+
+    /**
+     * @return The amount of connected clients.
+     */
+    public int size() {
+        return this.clients.size();
+    }
+
+    /**
+     * Handles a command from a client.
+     *
+     * @param ctx The message context.
+     */
+    private void receive(WsMessageContext ctx) {
+        var client = this.clients.get(ctx.session);
+        if (client == null) return;
+
+        var arguments = ctx.message().trim().split("\\s+");
+        try {
+            switch (arguments[0]) {
+                case "sub", "unsub" -> {
+                    var subscribe = arguments[0].equals("sub");
+                    var owner = arguments.length == 3 && arguments[1].equals("owner");
+                    var uuid = UUID.fromString(arguments[owner ? 2 : 1]);
+
+                    if (owner && subscribe && !RedstoneRouting.trusted(client.address)) {
+                        client.offer("err forbidden");
+                        return;
+                    }
+
+                    var set = owner ? client.owners : client.uuids;
+                    if (!subscribe) set.remove(uuid);
+                    else if (set.size() < this.config.getMaxSubscriptions()) set.add(uuid);
+                    else client.offer("err too many subscriptions");
+                }
+                case "set" -> {
+                    var uuid = UUID.fromString(arguments[1]);
+                    var action = TickQueue.Action.valueOf(arguments[2].toUpperCase());
+
+                    // Limit and record sets like HTTP requests.
+                    var trace = WirelessRedstone.getTrace();
+                    if (trace.isRecording()) trace.batch(List.of(uuid), List.of(action));
+
+                    RedstoneEndpoint endpoint = null;
+                    var wait = WirelessRedstone.getLimiter().admit(client.address);
+                    if (wait <= 0) {
+                        var resolved = RedstoneRouting.resolve(uuid);
+                        if (resolved.endpoint() == null) {
+                            client.offer("err " + uuid + " missing");
+                            return;
+                        }
+
+                        endpoint = resolved.endpoint();
+                        wait = resolved.delay();
+                    }
+
+                    if (wait > 0) {
+                        client.offer("err " + uuid + " limited " + TimeUnit.NANOSECONDS.toMillis(wait + 999_999));
+                        return;
+                    }
+
+                    WirelessRedstone.getTickQueue().submit(endpoint, action)
+                            .whenComplete((state, exception) -> client.offer(exception == null ?
+                                    "ok " + uuid + " " + (state ? 1 : 0) : "err " + uuid + " unloaded"));
+                }
+                default -> client.offer("err unknown command");
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ignored) {
+            client.offer("err invalid arguments");
+        }
+    }
+
+    /**
+     * Run by the fan-out thread.
+     */
+    private void run() {
+        while (this.running) {
+            var change = this.changes.poll();
+            if (change == null) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+
+            this.pending.decrementAndGet();
+
+            String frame = null;
+            for (var client : this.clients.values()) {
+                if (!client.uuids.contains(change.uuid())
+                        && !client.owners.contains(change.owner())) continue;
+
+                if (frame == null)
+                    frame = change.kind() + " " + change.uuid() + " " + (change.state() ? 1 : 0);
+                client.offer(frame);
+            }
+        }
+    }
+
+    /**
+     * A published state change.
+     */
+    private record Change(char kind, UUID uuid, UUID owner, boolean state) { }
+
+    /**
+     * A connected client with a bounded send buffer.
+     */
+    private final class Client implements WriteCallback {
+        private final Session session;
+        private final String address;
+        private final Set<UUID> uuids = ConcurrentHashMap.newKeySet();
+        private final Set<UUID> owners = ConcurrentHashMap.newKeySet();
+
+        private final ArrayDeque<String> buffer = new ArrayDeque<>();
+        private boolean sending = false;
+
+        Client(Session session) {
+            this.session = session;
+            this.address = session.getRemoteAddress() instanceof InetSocketAddress remote ?
+                    remote.getAddress().getHostAddress() : "";
+        }
+
+        /**
+         * Queues a frame, dropping the oldest frame if the buffer is full.
+         *
+         * @param frame The frame to send.
+         */
+        void offer(String frame) {
+            synchronized (this) {
+                if (this.buffer.size() >= StateStream.this.config.getClientBuffer())
+                    this.buffer.poll();
+                this.buffer.add(frame);
+            }
+
+            this.flush();
+        }
+
+        /**
+         * Sends the next frame if none is in flight.
+         */
+        private void flush() {
+            String frame;
+            synchronized (this) {
+                if (this.sending || this.buffer.isEmpty()) return;
+
+                this.sending = true;
+                frame = this.buffer.poll();
+            }
+
+            this.session.getRemote().sendString(frame, this);
+        }
+
+        @Override
+        public void writeSuccess() {
+            synchronized (this) {
+                this.sending = false;
+            }
+
+            this.flush();
+        }
+
+        @Override
+        public void writeFailed(Throwable exception) {
+            StateStream.this.clients.remove(this.session);
+            this.session.close();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package moe.seikimo.wirelessredstone;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Copy-on-write table of the states of all components.
+ * Every component gets a dense ID, which indexes a bitset of states.
+ * The server thread publishes an immutable snapshot at the end of each tick which changed something,
+ * so readers on other threads never lock and never touch the level.
+ */
+public final class StateTable {
+    private final ComponentRegistry registry;
+
+    /** Dense IDs of published components. Written by the server thread only. */
+    private final Map<UUID, Integer> ids = new ConcurrentHashMap<>();
+    private final ArrayDeque<Integer> free = new ArrayDeque<>();
+    /** Components which were added, removed or changed since the last snapshot. */
+    private final Queue<RedstoneComponent> changed = new ConcurrentLinkedQueue<>();
+
+    private volatile Snapshot snapshot = new Snapshot(0, new RedstoneComponent[0], new long[0]);
+    private int size = 0;
+
+    StateTable(ComponentRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Marks a component to be updated in the next snapshot.
+     * Safe to call from any thread.
+     *
+     * @param component The component.
+     */
+    public void changed(RedstoneComponent component) {
+        this.changed.add(component);
+    }
+
+    /**
+     * @return The latest published snapshot.
+     */
+    public Snapshot snapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Looks up the state of a component in the latest snapshot.
+     *
+     * @param uuid The UUID of the component.
+     * @return The state, or null if the component is not in the snapshot.
+     */
+    public Boolean get(UUID uuid) {
+        return this.get(this.snapshot, uuid);
+    }
+
+    /**
+     * Looks up the state of a component in a snapshot.
+     *
+     * @param snapshot The snapshot.
+     * @param uuid The UUID of the component.
+     * @return The state, or null if the component is not in the snapshot.
+     */
+    public Boolean get(Snapshot snapshot, UUID uuid) {
+        return snapshot.get(this.ids.get(uuid), uuid);
+    }
+
+    /**
+     * Publishes a new snapshot if any component changed.
+     * Invoked by the server thread at the end of each tick.
+     *
+     * @param tick The current tick.
+     */
+    public void publish(long tick) {
+        if (this.changed.isEmpty()) return;
+
+        var current = this.snapshot;
+        var components = current.components;
+        var bits = current.bits.clone();
+        var copied = false;
+
+        RedstoneComponent component;
+        while ((component = this.changed.poll()) != null) {
+            var uuid = component.getUuid();
+            var id = this.ids.get(uuid);
+            var present = this.registered(component);
+
+            if (id == null) {
+                if (!present) continue;
+
+                // Give the new component an ID.
+                id = this.free.isEmpty() ? this.size++ : this.free.pop();
+                if (id >= components.length) {
+                    components = Arrays.copyOf(components, Math.max(64, components.length * 2));
+                    bits = Arrays.copyOf(bits, components.length >> 6);
+                } else if (!copied) {
+                    components = components.clone();
+                }
+                copied = true;
+
+                components[id] = component;
+                this.ids.put(uuid, id);
+            } else if (!present) {
+                if (components[id] != component) continue;
+
+                // Free the ID of a removed component.
+                if (!copied) components = components.clone();
+                copied = true;
+
+                components[id] = null;
+                set(bits, id, false);
+                this.ids.remove(uuid, id);
+                this.free.push(id);
+                continue;
+            } else if (components[id] != component) {
+                // The component was replaced under the same UUID.
+                if (!copied) components = components.clone();
+                copied = true;
+
+                components[id] = component;
+            }
+
+            set(bits, id, state(component));
+        }
+
+        // Keep the old snapshot, and its tag, if nothing changed.
+        if (!copied && Arrays.equals(bits, current.bits)) return;
+        this.snapshot = new Snapshot(tick, components, bits);
+    }
+
+    /**
+     * @param component The component.
+     * @return Whether the component is the one registered under its UUID.
+     */
+    private boolean registered(RedstoneComponent component) {
+        if (component instanceof RedstoneEndpoint)
+            return this.registry.getEndpoint(component.getUuid()) == component;
+        return this.registry.getWaypoint(component.getUuid()) == component;
+    }
+
+    /**
+     * @param component The component.
+     * @return Whether an endpoint is powered, or a waypoint's lamp is lit.
+     */
+    private static boolean state(RedstoneComponent component) {
+        if (component instanceof RedstoneEndpoint endpoint)
+            return endpoint.isLoaded() && endpoint.isEnabled();
+        return component instanceof RedstoneWaypoint waypoint && waypoint.isLit();
+    }
+
+    private static void set(long[] bits, int id, boolean value) {
+        if (value) bits[id >> 6] |= 1L << id;
+        else bits[id >> 6] &= ~(1L << id);
+    }
+
+    /**
+     * The states of all components at the end of a tick.
+     * Never modified once published.
+     *
+     * @param tick The tick in which the snapshot was published.
+     * @param components The components by dense ID, with gaps.
+     * @param bits The states by dense ID.
+     */
+    public record Snapshot(long tick, RedstoneComponent[] components, long[] bits) {
+        /**
+         * @param id The dense ID of the component, or null.
+         * @param uuid The UUID of the component.
+         * @return The state, or null if the component is not in this snapshot.
+         */
+        Boolean get(Integer id, UUID uuid) {
+            if (id == null || id >= this.components.length) return null;
+
+            var component = this.components[id];
+            if (component == null || !component.getUuid().equals(uuid)) return null;
+            return this.state(id);
+        }
+
+        /**
+         * @param id The dense ID.
+         * @return The state of the component.
+         */
+        public boolean state(int id) {
+            return (this.bits[id >> 6] & 1L << id) != 0;
+        }
+
+        /**
+         * Ticks count from zero in every run, so the tag also holds the scheduler's epoch.
+         *
+         * @return The entity tag of this snapshot.
+         */
+        public String etag() {
+            return "\"" + WirelessRedstone.getScheduler().getEpoch() + "-" + this.tick + "\"";
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package moe.seikimo.wirelessredstone;
+
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Queues endpoint changes from other threads.
+ * The queue is drained on the server thread once per tick.
+ */
+public final class TickQueue {
+    /**
+     * A change which can be made to an endpoint.
+     */
+    public enum Action {
+        ON, OFF, TOGGLE;
+
+        /**
+         * @param state The current state.
+         * @return The state after the action.
+         */
+        public boolean apply(boolean state) {
+            return switch (this) {
+                case ON -> true;
+                case OFF -> false;
+                case TOGGLE -> !state;
+            };
+        }
+    }
+
+    private final RedstoneConfig.Tick config;
+
+    /** Holds both single commands and batches. */
+    private final ConcurrentLinkedQueue<Object> commands = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Map<RedstoneEndpoint, Pending> pending = new IdentityHashMap<>();
+    private final ArrayDeque<Spread<?>> spread = new ArrayDeque<>();
+
+    @Getter private long tick = 0;
+
+    public TickQueue(RedstoneConfig.Tick config) {
+        this.config = config;
+    }
+
+    /**
+     * Queues a toggle of the endpoint.
+     * Can be called from any thread.
+     *
+     * @param endpoint The endpoint to toggle.
+     * @return A future completed with the new state once applied.
+     */
+    public CompletableFuture<Boolean> toggle(RedstoneEndpoint endpoint) {
+        return this.submit(endpoint, Action.TOGGLE);
+    }
+
+    /**
+     * Queues a change to the endpoint.
+     * Can be called from any thread.
+     *
+     * @param endpoint The endpoint to change.
+     * @param action The change to make.
+     * @return A future completed with the new state once applied.
+     */
+    public CompletableFuture<Boolean> submit(RedstoneEndpoint endpoint, Action action) {
+        var command = new Command(endpoint, action, new CompletableFuture<>(), System.nanoTime());
+        this.commands.add(command);
+        this.size.incrementAndGet();
+
+        return command.future();
+    }
+
+    /**
+     * Queues changes to many endpoints which are applied in the same tick.
+     * Can be called from any thread.
+     *
+     * @param endpoints The endpoints to change.
+     * @param actions The change to make to each endpoint.
+     * @return A future for each endpoint, completed with its new state once applied.
+     */
+    public List<CompletableFuture<Boolean>> submitAll(List<RedstoneEndpoint> endpoints, List<Action> actions) {
+        var batch = new Command[endpoints.size()];
+        var futures = new ArrayList<CompletableFuture<Boolean>>(batch.length);
+        var queued = System.nanoTime();
+        for (var i = 0; i < batch.length; i++) {
+            batch[i] = new Command(endpoints.get(i), actions.get(i), new CompletableFuture<>(), queued);
+            futures.add(batch[i].future());
+        }
+
+        if (batch.length > 0) {
+            this.commands.add(batch);
+            this.size.addAndGet(batch.length);
+        }
+
+        return futures;
+    }
+
+    /**
+     * Runs an action for many items, spread over as many ticks as needed.
+     * Must be called on the server thread.
+     *
+     * @param key The key used to cancel the work.
+     * @param items The items to process.
+     * @param action The action to run for each item.
+     */
+    public <T> void spread(Object key, Collection<T> items, Consumer<T> action) {
+        if (!items.isEmpty())
+            this.spread.add(new Spread<>(key, items.iterator(), action));
+    }
+
+    /**
+     * Runs all spread work right away, ignoring the per-tick budget.
+     * Used while the server stops, as no more ticks will run.
+     * Must be called on the server thread.
+     */
+    public void finish() {
+        Spread<?> work;
+        while ((work = this.spread.poll()) != null) {
+            while (work.items.hasNext())
+                work.run();
+        }
+    }
+
+    /**
+     * Cancels work which has not run yet.
+     * Must be called on the server thread.
+     *
+     * @param key The key the work was queued with.
+     */
+    public void cancel(Object key) {
+        this.spread.removeIf(work -> Objects.equals(work.key, key));
+    }
+
+    /**
+     * Applies queued commands up to the per-tick budget.
+     * Must be called on the server thread.
+     */
+    public void drain() {
+        this.tick++;
+
+        // Continue work spread over multiple ticks.
+        var items = this.config.getSpreadBudget();
+        while (items > 0 && !this.spread.isEmpty()) {
+            var work = this.spread.peek();
+            while (items-- > 0 && work.items.hasNext())
+                work.run();
+            if (!work.items.hasNext()) this.spread.poll();
+        }
+
+        // Group commands by endpoint.
+        // A batch is never split, even if it exceeds the remaining budget.
+        var budget = this.config.getCommandBudget();
+        Object next;
+        while (budget > 0 && (next = this.commands.poll()) != null) {
+            if (next instanceof Command[] batch) {
+                for (var command : batch) this.group(command);
+                budget -= batch.length;
+                this.size.addAndGet(-batch.length);
+            } else {
+                this.group((Command) next);
+                budget--;
+                this.size.decrementAndGet();
+            }
+        }
+
+        // Apply each endpoint once.
+        var metrics = WirelessRedstone.getMetrics();
+        for (var entry : this.pending.entrySet()) {
+            var endpoint = entry.getKey();
+            var changes = entry.getValue();
+
+            try {
+                if (!endpoint.isLoaded())
+                    throw new IllegalStateException("Endpoint is not loaded.");
+
+                // Fold the changes into the final state.
+                var state = endpoint.isEnabled();
+                for (var command : changes.commands)
+                    state = command.action().apply(state);
+                if (state != endpoint.isEnabled())
+                    endpoint.setState(state);
+
+                for (var command : changes.commands) {
+                    command.future().complete(state);
+                    metrics.applied(command.queued());
+                }
+            } catch (RuntimeException exception) {
+                for (var command : changes.commands)
+                    command.future().completeExceptionally(exception);
+            }
+        }
+
+        this.pending.clear();
+    }
+
+    /**
+     * Fails all queued commands.
+     * Used when the server is stopping.
+     */
+    public void close() {
+        var exception = new IllegalStateException("Server is stopping.");
+
+        Object next;
+        while ((next = this.commands.poll()) != null) {
+            var batch = next instanceof Command[] commands ?
+                    commands : new Command[] { (Command) next };
+            for (var command : batch) {
+                this.size.decrementAndGet();
+                command.future().completeExceptionally(exception);
+            }
+        }
+    }
+
+    /**
+     * @return The amount of commands waiting to be applied.
+     */
+    public int size() {
+        return this.size.get();
+    }
+
+    /**
+     * Adds a command to the changes of its endpoint for this tick.
+     */
+    private void group(Command command) {
+        this.pending.computeIfAbsent(command.endpoint(), e -> new Pending())
+                .commands.add(command);
+    }
+
+    /**
+     * A queued change to an endpoint.
+     *
+     * @param endpoint The endpoint to change.
+     * @param action The change to make.
+     * @param future The future to complete once applied.
+     * @param queued The {@link System#nanoTime()} when the command was queued.
+     */
+    private record Command(RedstoneEndpoint endpoint, Action action,
+                           CompletableFuture<Boolean> future, long queued) { }
+
+    /**
+     * Work spread over multiple ticks.
+     */
+    private record Spread<T>(Object key, Iterator<T> items, Consumer<T> action) {
+        void run() {
+            this.action.accept(this.items.next());
+        }
+    }
+
+    /**
+     * Commands for one endpoint collected during a tick.
+     */
+    private static final class Pending {
+        private final List<Command> commands = new ArrayList<>(1);
+    }
+}
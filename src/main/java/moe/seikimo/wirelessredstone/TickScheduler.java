@@ -0,0 +1,282 @@
+package moe.seikimo.wirelessredstone;
+
+import lombok.Getter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs delayed work on the server thread using a hashed timing wheel.
+ * Scheduling and cancelling are constant time and can be done from any thread.
+ *
+ * Ticks count from zero in every run, so they are paired with an epoch which changes with every start.
+ */
+public final class TickScheduler {
+    private static final int WHEEL_SIZE = 4096;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private static final VarHandle DONE;
+
+    static {
+        try {
+            DONE = MethodHandles.lookup().findVarHandle(Timer.class, "done", boolean.class);
+        } catch (ReflectiveOperationException exception) {
+            throw new ExceptionInInitializerError(exception);
+        }
+    }
+
+    private final Timer[] wheel = new Timer[WHEEL_SIZE];
+    private final ConcurrentLinkedQueue<Timer> scheduled = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timer> cancelled = new ConcurrentLinkedQueue<>();
+    private final Map<Long, Timer> endpointTimers = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicBoolean saving = new AtomicBoolean();
+
+    @Getter private final String epoch = Long.toHexString(System.currentTimeMillis());
+    @Getter private volatile long tick = 0;
+    /** Whether endpoint timers changed since they were last saved. */
+    private volatile boolean dirty = false;
+
+    /**
+     * Schedules a task.
+     *
+     * @param delay The amount of ticks to wait.
+     * @param task The task to run on the server thread.
+     * @return The timer.
+     */
+    public Timer schedule(long delay, Runnable task) {
+        var timer = new Timer(this.ids.incrementAndGet(),
+                this.tick + Math.max(1, delay), task, null, null);
+        this.scheduled.add(timer);
+        return timer;
+    }
+
+    /**
+     * Schedules a change to an endpoint.
+     * These timers are saved every few seconds and when the server stops.
+     *
+     * @param delay The amount of ticks to wait.
+     * @param endpoint The UUID of the endpoint.
+     * @param action The change to make.
+     * @return The timer.
+     */
+    public Timer schedule(long delay, UUID endpoint, TickQueue.Action action) {
+        var timer = new Timer(this.ids.incrementAndGet(),
+                this.tick + Math.max(1, delay), null, endpoint, action);
+        this.endpointTimers.put(timer.id, timer);
+        this.scheduled.add(timer);
+        this.dirty = true;
+        return timer;
+    }
+
+    /**
+     * Cancels a timer of an endpoint.
+     *
+     * @param id The ID of the timer.
+     * @param endpoint The UUID of the endpoint the timer must belong to.
+     * @return Whether a pending timer was cancelled.
+     */
+    public boolean cancel(long id, UUID endpoint) {
+        var timer = this.endpointTimers.get(id);
+        return timer != null && timer.endpoint.equals(endpoint) && this.cancel(timer);
+    }
+
+    /**
+     * Cancels a timer.
+     *
+     * @param timer The timer.
+     * @return Whether the timer was pending.
+     */
+    public boolean cancel(Timer timer) {
+        // Only one of cancelling and firing can win.
+        if (!DONE.compareAndSet(timer, false, true)) return false;
+
+        if (this.endpointTimers.remove(timer.id) != null) this.dirty = true;
+        this.cancelled.add(timer);
+        return true;
+    }
+
+    /**
+     * @return The amount of pending endpoint timers.
+     */
+    public int size() {
+        return this.endpointTimers.size();
+    }
+
+    /**
+     * Advances the wheel by one tick and runs due timers.
+     * Must be called on the server thread.
+     */
+    public void advance() {
+        var now = ++this.tick;
+
+        // Unlink cancelled timers.
+        Timer timer;
+        while ((timer = this.cancelled.poll()) != null)
+            this.unlink(timer);
+
+        // Link new timers.
+        while ((timer = this.scheduled.poll()) != null) {
+            if (timer.done) continue;
+            this.link(timer);
+        }
+
+        // Run due timers in the current slot.
+        var slot = (int) (now & WHEEL_MASK);
+        for (timer = this.wheel[slot]; timer != null; ) {
+            var next = timer.next;
+            if (timer.deadline <= now) {
+                this.unlink(timer);
+                this.fire(timer);
+            }
+
+            timer = next;
+        }
+    }
+
+    /**
+     * Saves pending endpoint timers on another thread, if they changed since the last save.
+     * Skipped while a save is already running.
+     *
+     * @param file The file to write.
+     */
+    public void saveLater(File file) {
+        if (!this.dirty || !this.saving.compareAndSet(false, true)) return;
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                this.save(file);
+            } catch (IOException exception) {
+                WirelessRedstone.getLogger().error("Failed to save timers.", exception);
+            } finally {
+                this.saving.set(false);
+            }
+        });
+    }
+
+    /**
+     * Saves pending endpoint timers with their remaining delay.
+     * The file is replaced atomically, so a crash leaves the previous save intact.
+     *
+     * @param file The file to write.
+     */
+    public synchronized void save(File file) throws IOException {
+        this.dirty = false;
+
+        var temporary = new File(file.getPath() + ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporary.toPath())))) {
+            var timers = this.endpointTimers.values().stream()
+                    .filter(timer -> !timer.done).toList();
+
+            output.writeInt(timers.size());
+            for (var timer : timers) {
+                output.writeLong(timer.endpoint.getMostSignificantBits());
+                output.writeLong(timer.endpoint.getLeastSignificantBits());
+                output.writeByte(timer.action.ordinal());
+                output.writeLong(Math.max(1, timer.deadline - this.tick));
+            }
+        }
+
+        Files.move(temporary.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Schedules endpoint timers saved by {@link #save(File)}.
+     * The file is kept until the next save replaces it.
+     *
+     * @param file The file to read.
+     */
+    public void load(File file) throws IOException {
+        if (!file.exists()) return;
+
+        try (var input = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            var count = input.readInt();
+            for (var i = 0; i < count; i++) {
+                var endpoint = new UUID(input.readLong(), input.readLong());
+                var action = TickQueue.Action.values()[input.readByte()];
+                this.schedule(input.readLong(), endpoint, action);
+            }
+        }
+    }
+
+    private void link(Timer timer) {
+        // Timers which are already due run in the current slot.
+        var slot = (int) (Math.max(timer.deadline, this.tick) & WHEEL_MASK);
+        var head = this.wheel[slot];
+
+        timer.slot = slot;
+        timer.next = head;
+        if (head != null) head.previous = timer;
+        this.wheel[slot] = timer;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.slot == -1) return;
+
+        if (timer.previous != null) timer.previous.next = timer.next;
+        else this.wheel[timer.slot] = timer.next;
+        if (timer.next != null) timer.next.previous = timer.previous;
+
+        timer.previous = timer.next = null;
+        timer.slot = -1;
+    }
+
+    private void fire(Timer timer) {
+        if (!DONE.compareAndSet(timer, false, true)) return;
+
+        if (timer.task != null) {
+            try {
+                timer.task.run();
+            } catch (RuntimeException exception) {
+                WirelessRedstone.getLogger().error("Scheduled task failed.", exception);
+            }
+            return;
+        }
+
+        this.endpointTimers.remove(timer.id);
+        this.dirty = true;
+        var endpoint = WirelessRedstone.getRegistry().getEndpoint(timer.endpoint);
+        if (endpoint != null)
+            WirelessRedstone.getTickQueue().submit(endpoint, timer.action);
+    }
+
+    /**
+     * A pending timer.
+     */
+    public static final class Timer {
+        @Getter private final long id;
+        @Getter private final long deadline;
+        private final Runnable task;
+        private final UUID endpoint;
+        private final TickQueue.Action action;
+
+        /** Set once the timer fires or is cancelled. */
+        private volatile boolean done = false;
+        private Timer previous, next;
+        private int slot = -1;
+
+        private Timer(long id, long deadline, Runnable task, UUID endpoint, TickQueue.Action action) {
+            this.id = id;
+            this.deadline = deadline;
+            this.task = task;
+            this.endpoint = endpoint;
+            this.action = action;
+        }
+    }
+}
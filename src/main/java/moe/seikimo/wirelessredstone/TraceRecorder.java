@@ -0,0 +1,394 @@
+package moe.seikimo.wirelessredstone;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in recorder of control-plane traffic, so incidents can be replayed.
+ * Requests which change endpoints and waypoint firings are written to a compact binary trace,
+ * with the time and scheduler tick of each. Requests are recorded before they are looked up
+ * or rate limited, so the trace holds the traffic as it arrived.
+ *
+ * File header: [int magic][long start time in milliseconds].
+ * Each record: [byte type][varlong microseconds since the last record][varlong ticks since the last record],
+ * followed by the fields of its type, see {@link Type}.
+ */
+public final class TraceRecorder {
+    private static final int MAGIC = 0x57525431; // 'WRT1'
+    private static final int BUFFER_SIZE = 65536;
+    private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The kinds of records.
+     */
+    public enum Type {
+        /** GET /{id}: [uuid]. */
+        TOGGLE,
+        /** GET /{id}/pulse/{ticks}: [uuid][varlong ticks]. */
+        PULSE,
+        /** GET /{id}/schedule/{state}/{tick}: [uuid][byte action][zigzag varlong ticks from now]. */
+        SCHEDULE,
+        /** POST /batch and WebSocket sets: [varint count], then [uuid][byte action] per item. */
+        BATCH,
+        /** A waypoint firing: [uuid][byte lit]. */
+        FIRED
+    }
+
+    private final File directory;
+    private final RedstoneConfig.Trace config;
+
+    private volatile boolean recording = false;
+    @Getter private File file;
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long size, lastTime, lastTick, lastFlush;
+
+    public TraceRecorder(File directory, RedstoneConfig.Trace config) {
+        this.directory = directory;
+        this.config = config;
+    }
+
+    /**
+     * Starts recording to a new file named after the current time.
+     *
+     * @return The trace file.
+     */
+    public synchronized File start() throws IOException {
+        if (this.recording) return this.file;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs())
+            throw new IOException("Failed to create the trace directory.");
+
+        this.file = new File(this.directory, new SimpleDateFormat("yyyyMMdd-HHmmss")
+                .format(new Date()) + ".trace");
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        this.buffer.clear();
+        this.buffer.putInt(MAGIC).putLong(System.currentTimeMillis());
+        this.size = 0;
+        this.lastTime = this.lastFlush = System.nanoTime();
+        this.lastTick = WirelessRedstone.getScheduler().getTick();
+
+        this.recording = true;
+        return this.file;
+    }
+
+    /**
+     * Stops recording and closes the file.
+     *
+     * @return The trace file, or null if nothing was being recorded.
+     */
+    public synchronized File stop() {
+        if (!this.recording) return null;
+        this.recording = false;
+
+        try {
+            this.flush();
+            this.channel.close();
+        } catch (IOException exception) {
+            WirelessRedstone.getLogger().error("Failed to close the trace.", exception);
+        }
+
+        return this.file;
+    }
+
+    /**
+     * @return Whether traffic is being recorded.
+     */
+    public boolean isRecording() {
+        return this.recording;
+    }
+
+    /**
+     * Records a toggle request.
+     *
+     * @param id The endpoint in the request.
+     */
+    public void toggle(String id) {
+        if (!this.recording) return;
+
+        var uuid = TraceRecorder.uuid(id);
+        if (uuid == null) return;
+
+        synchronized (this) {
+            if (this.begin(Type.TOGGLE, 16)) putUuid(this.buffer, uuid);
+        }
+    }
+
+    /**
+     * Records a pulse request.
+     *
+     * @param id The endpoint in the request.
+     * @param ticks The length of the pulse in the request.
+     */
+    public void pulse(String id, String ticks) {
+        if (!this.recording) return;
+
+        var uuid = TraceRecorder.uuid(id);
+        long length;
+        try {
+            length = Long.parseLong(ticks);
+        } catch (NumberFormatException ignored) {
+            return;
+        }
+        if (uuid == null || length < 1) return;
+
+        synchronized (this) {
+            if (!this.begin(Type.PULSE, 26)) return;
+            putUuid(this.buffer, uuid);
+            putVarLong(this.buffer, length);
+        }
+    }
+
+    /**
+     * Records a schedule request.
+     * The tick is stored relative to the current tick, so it can be replayed at any tick.
+     *
+     * @param id The endpoint in the request.
+     * @param state The state in the request.
+     * @param tick The tick in the request.
+     */
+    public void schedule(String id, String state, String tick) {
+        if (!this.recording) return;
+
+        var uuid = TraceRecorder.uuid(id);
+        TickQueue.Action action;
+        long at;
+        try {
+            action = TickQueue.Action.valueOf(state.toUpperCase());
+            at = Long.parseLong(tick);
+        } catch (IllegalArgumentException ignored) {
+            return;
+        }
+        if (uuid == null) return;
+
+        synchronized (this) {
+            if (!this.begin(Type.SCHEDULE, 27)) return;
+            putUuid(this.buffer, uuid);
+            this.buffer.put((byte) action.ordinal());
+            var delta = at - WirelessRedstone.getScheduler().getTick();
+            putVarLong(this.buffer, (delta << 1) ^ (delta >> 63));
+        }
+    }
+
+    /**
+     * Records a batch request.
+     *
+     * @param uuids The endpoints in the request.
+     * @param actions The action for each endpoint.
+     */
+    public void batch(List<UUID> uuids, List<TickQueue.Action> actions) {
+        if (!this.recording) return;
+
+        synchronized (this) {
+            if (!this.begin(Type.BATCH, 5 + uuids.size() * 17)) return;
+            putVarLong(this.buffer, uuids.size());
+            for (var i = 0; i < uuids.size(); i++) {
+                putUuid(this.buffer, uuids.get(i));
+                this.buffer.put((byte) actions.get(i).ordinal());
+            }
+        }
+    }
+
+    /**
+     * Records a waypoint firing.
+     *
+     * @param waypoint The waypoint.
+     * @param lit Whether its lamp is lit.
+     */
+    public void fired(RedstoneWaypoint waypoint, boolean lit) {
+        if (!this.recording) return;
+
+        synchronized (this) {
+            if (!this.begin(Type.FIRED, 17)) return;
+            putUuid(this.buffer, waypoint.getUuid());
+            this.buffer.put((byte) (lit ? 1 : 0));
+        }
+    }
+
+    /**
+     * Writes the header of a record, making room for its fields.
+     * Stops recording once the trace reaches its size limit.
+     * Must be called while holding the lock.
+     *
+     * @param type The type of the record.
+     * @param length The most bytes its fields take.
+     * @return Whether the record should be written.
+     */
+    private boolean begin(Type type, int length) {
+        if (!this.recording) return false;
+
+        var now = System.nanoTime();
+        length += 21;
+        try {
+            if (this.buffer.remaining() < length || now - this.lastFlush > FLUSH_INTERVAL)
+                this.flush();
+            if (this.buffer.capacity() < length)
+                this.buffer = ByteBuffer.allocate(length);
+        } catch (IOException exception) {
+            WirelessRedstone.getLogger().error("Failed to write the trace, stopping.", exception);
+            this.stop();
+            return false;
+        }
+
+        if (this.size + this.buffer.position() + length > this.config.getMaxSize()) {
+            WirelessRedstone.getLogger().warn("The trace reached its size limit, stopping.");
+            this.stop();
+            return false;
+        }
+
+        // Keep the remainder, so rounding does not drift.
+        var micros = (now - this.lastTime) / 1000;
+        this.lastTime += micros * 1000;
+        var tick = WirelessRedstone.getScheduler().getTick();
+
+        this.buffer.put((byte) type.ordinal());
+        putVarLong(this.buffer, micros);
+        putVarLong(this.buffer, tick - this.lastTick);
+        this.lastTick = tick;
+        return true;
+    }
+
+    /**
+     * Writes the buffer to the file.
+     * Must be called while holding the lock.
+     */
+    private void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining())
+            this.size += this.channel.write(this.buffer);
+        this.buffer.clear();
+        this.lastFlush = System.nanoTime();
+    }
+
+    private static UUID uuid(String id) {
+        try {
+            return UUID.fromString(id);
+        } catch (IllegalArgumentException ignored) {
+            return null;
+        }
+    }
+
+    private static void putUuid(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads a trace written by the recorder.
+     */
+    public static final class Reader {
+        private final ByteBuffer input;
+
+        @Getter private final long started;
+        @Getter private Type type;
+        /** The microseconds since the start of the trace. */
+        @Getter private long time;
+        /** The ticks since the start of the trace. */
+        @Getter private long tick;
+        /** The component, unless this is a batch. */
+        @Getter private UUID uuid;
+        /** The pulse length, the tick relative to the record's tick, or whether the lamp is lit. */
+        @Getter private long argument;
+        @Getter private TickQueue.Action action;
+        /** The endpoints and actions of a batch. */
+        @Getter private UUID[] uuids;
+        @Getter private TickQueue.Action[] actions;
+
+        /**
+         * @param input The contents of a trace file.
+         * @throws IOException If the input is not a trace.
+         */
+        public Reader(ByteBuffer input) throws IOException {
+            this.input = input;
+            if (input.remaining() < 12 || input.getInt() != MAGIC)
+                throw new IOException("Not a trace file.");
+            this.started = input.getLong();
+        }
+
+        /**
+         * Reads the next record.
+         * A record cut off by a crash ends the trace.
+         *
+         * @return False if there are no more records.
+         */
+        public boolean next() {
+            if (!this.input.hasRemaining()) return false;
+
+            var start = this.input.position();
+            try {
+                this.type = Type.values()[this.input.get()];
+                this.time += this.readVarLong();
+                this.tick += this.readVarLong();
+
+                this.uuid = null;
+                this.action = null;
+                this.argument = 0;
+                switch (this.type) {
+                    case TOGGLE -> this.uuid = this.readUuid();
+                    case PULSE -> {
+                        this.uuid = this.readUuid();
+                        this.argument = this.readVarLong();
+                    }
+                    case SCHEDULE -> {
+                        this.uuid = this.readUuid();
+                        this.action = TickQueue.Action.values()[this.input.get()];
+                        var delta = this.readVarLong();
+                        this.argument = (delta >>> 1) ^ -(delta & 1);
+                    }
+                    case BATCH -> {
+                        var count = (int) this.readVarLong();
+                        this.uuids = new UUID[count];
+                        this.actions = new TickQueue.Action[count];
+                        for (var i = 0; i < count; i++) {
+                            this.uuids[i] = this.readUuid();
+                            this.actions[i] = TickQueue.Action.values()[this.input.get()];
+                        }
+                    }
+                    case FIRED -> {
+                        this.uuid = this.readUuid();
+                        this.argument = this.input.get();
+                    }
+                }
+
+                return true;
+            } catch (RuntimeException ignored) {
+                this.input.position(start);
+                return false;
+            }
+        }
+
+        private UUID readUuid() {
+            return new UUID(this.input.getLong(), this.input.getLong());
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (var shift = 0; shift < 64; shift += 7) {
+                var next = this.input.get();
+                value |= (long) (next & 0x7F) << shift;
+                if (next >= 0) return value;
+            }
+
+            throw new IllegalStateException("Malformed varint.");
+        }
+    }
+}
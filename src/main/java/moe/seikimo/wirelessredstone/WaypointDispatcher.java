@@ -0,0 +1,468 @@
+package moe.seikimo.wirelessredstone;
+
+import lombok.Getter;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends waypoint requests from a fixed set of threads.
+ * Requests wait in a bounded queue and are limited per host.
+ * Events for hosts which opt into batching are sent together as one POST.
+ *
+ * Each waypoint has its own lane, and batches share the lane of their URL.
+ * A lane has at most one request in flight, so its events arrive in the order they happened,
+ * while different lanes are sent in parallel. Every event carries a sequence number which
+ * only increases, even across restarts, so receivers can drop events older than one they have seen.
+ */
+public final class WaypointDispatcher {
+    private static final MediaType JSON = MediaType.get("application/json");
+
+    /**
+     * What to do with a request when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Discard the request which has waited the longest. */
+        DROP_OLDEST,
+        /** Discard the new request. */
+        DROP_NEWEST,
+        /** Merge requests for the same waypoint, otherwise discard the new request. */
+        COALESCE
+    }
+
+    private final RedstoneConfig.Dispatcher config;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = this.lock.newCondition();
+
+    private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+    private final Map<UUID, Delivery> queued = new HashMap<>();
+    private final Map<HttpUrl, Delivery> batches = new LinkedHashMap<>();
+    private final Map<String, Integer> active = new HashMap<>();
+    private final Set<Object> lanes = new HashSet<>();
+    private final List<Thread> workers = new ArrayList<>();
+
+    @Getter private final AtomicLong dropped = new AtomicLong();
+    @Getter private final AtomicLong failed = new AtomicLong();
+
+    private boolean running = true;
+    /** Starts at the time in microseconds, so it stays ahead of the previous run. */
+    private long sequence = System.currentTimeMillis() * 1000;
+
+    public WaypointDispatcher(RedstoneConfig.Dispatcher config) {
+        this.config = config;
+
+        for (var i = 0; i < Math.max(1, config.getThreads()); i++) {
+            var worker = new Thread(this::work, "Waypoint Dispatcher #" + i);
+            worker.setDaemon(true);
+            worker.start();
+
+            this.workers.add(worker);
+        }
+    }
+
+    /**
+     * Queues a request for the waypoint.
+     *
+     * @param waypoint The waypoint which was invoked.
+     * @param lit Whether the lamp is lit.
+     * @return Whether the request was queued.
+     */
+    public boolean submit(RedstoneWaypoint waypoint, boolean lit) {
+        // Parse the URL of the waypoint.
+        var url = HttpUrl.parse(waypoint.getEndpoint());
+        if (url == null) return false;
+
+        var tick = WirelessRedstone.getScheduler().getTick();
+
+        this.lock.lock();
+        try {
+            if (!this.running) return false;
+
+            // Number the event while holding the lock, so lanes are queued in sequence order.
+            var event = new Event(waypoint.getUuid(), lit, ++this.sequence,
+                    tick, System.currentTimeMillis());
+
+            // Add the event to the open batch for the URL.
+            if (this.isBatched(url)) {
+                var batch = this.batches.get(url);
+                if (batch == null) {
+                    batch = new Delivery(url, true);
+                    batch.deadline = System.nanoTime() + TimeUnit.MILLISECONDS
+                            .toNanos(this.config.getBatching().getWindow());
+                    this.batches.put(url, batch);
+                }
+
+                batch.events.add(event);
+                if (batch.events.size() >= this.config.getBatching().getMaxEvents())
+                    this.enqueue(this.batches.remove(url));
+
+                this.ready.signal();
+                return true;
+            }
+
+            // Merge with a request which is already waiting.
+            if (this.config.getOverflow() == OverflowPolicy.COALESCE) {
+                var waiting = this.queued.get(event.waypoint());
+                if (waiting != null) {
+                    waiting.events.set(0, event);
+                    return true;
+                }
+            }
+
+            var delivery = new Delivery(url, false);
+            delivery.events.add(event);
+            if (!this.enqueue(delivery)) return false;
+            this.queued.put(event.waypoint(), delivery);
+
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting requests and waits for queued requests to be sent.
+     */
+    public void shutdown() {
+        this.lock.lock();
+        try {
+            this.running = false;
+
+            // Send open batches right away.
+            for (var batch : this.batches.values())
+                this.enqueue(batch);
+            this.batches.clear();
+
+            this.ready.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+
+        // Wait for the workers to empty the queue.
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS
+                .toNanos(this.config.getDrainTimeout());
+        for (var worker : this.workers) {
+            try {
+                var remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining > 0) worker.join(remaining);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // Discard anything which could not be sent in time.
+        this.lock.lock();
+        try {
+            if (!this.queue.isEmpty())
+                WirelessRedstone.getLogger().warn("Discarded {} waypoint requests on shutdown.", this.queue.size());
+
+            this.queue.clear();
+            this.queued.clear();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return The amount of requests waiting to be sent.
+     */
+    public int getQueued() {
+        this.lock.lock();
+        try {
+            return this.queue.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if events to a URL are sent in batches.
+     *
+     * @param url The URL.
+     * @return Whether the URL's host opted into batching.
+     */
+    private boolean isBatched(HttpUrl url) {
+        var batching = this.config.getBatching();
+        return batching.isEnabled() && (batching.getHosts().contains("*")
+                || batching.getHosts().contains(url.host()));
+    }
+
+    /**
+     * Adds a delivery to the queue, applying the overflow policy.
+     * Must be called while holding the lock.
+     *
+     * @param delivery The delivery.
+     * @return Whether the delivery was queued.
+     */
+    private boolean enqueue(Delivery delivery) {
+        // Make room for the request.
+        if (this.queue.size() >= this.config.getQueueSize()) {
+            if (this.config.getOverflow() != OverflowPolicy.DROP_OLDEST
+                    || this.queue.isEmpty()) {
+                this.dropped.addAndGet(delivery.events.size());
+                return false;
+            }
+
+            var oldest = this.queue.pollFirst();
+            this.forget(oldest);
+            this.dropped.addAndGet(oldest.events.size());
+        }
+
+        this.queue.addLast(delivery);
+        this.ready.signal();
+        return true;
+    }
+
+    /**
+     * Run by each worker thread.
+     */
+    private void work() {
+        while (true) {
+            Delivery delivery;
+
+            this.lock.lock();
+            try {
+                // Wait for a request to a host and lane which are not busy.
+                while ((delivery = this.next()) == null) {
+                    if (!this.running && this.queue.isEmpty()) return;
+
+                    var wait = this.untilBatchDeadline();
+                    if (wait == Long.MAX_VALUE) this.ready.awaitUninterruptibly();
+                    else this.ready.awaitNanos(wait);
+                }
+
+                this.active.merge(delivery.host(), 1, Integer::sum);
+                this.lanes.add(delivery.lane());
+            } catch (InterruptedException ignored) {
+                continue;
+            } finally {
+                this.lock.unlock();
+            }
+
+            try {
+                this.send(delivery);
+            } finally {
+                this.lock.lock();
+                try {
+                    this.active.computeIfPresent(delivery.host(),
+                            (host, count) -> count > 1 ? count - 1 : null);
+                    this.lanes.remove(delivery.lane());
+                    this.ready.signalAll();
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the first request whose host is below the concurrency limit
+     * and whose lane has nothing in flight.
+     * Since the queue is in order, this is the oldest request of its lane.
+     * Must be called while holding the lock.
+     *
+     * @return The request, or null if none can be sent.
+     */
+    private Delivery next() {
+        // Close batches whose window has passed.
+        if (!this.batches.isEmpty()) {
+            var now = System.nanoTime();
+            var iterator = this.batches.values().iterator();
+            while (iterator.hasNext()) {
+                var batch = iterator.next();
+                if (batch.deadline - now > 0) continue;
+
+                iterator.remove();
+                this.enqueue(batch);
+            }
+        }
+
+        var iterator = this.queue.iterator();
+        while (iterator.hasNext()) {
+            var delivery = iterator.next();
+            if (this.active.getOrDefault(delivery.host(), 0) >= this.config.getPerHost()
+                    || this.lanes.contains(delivery.lane()))
+                continue;
+
+            iterator.remove();
+            this.forget(delivery);
+            return delivery;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Nanoseconds until the next batch window closes, or Long.MAX_VALUE.
+     */
+    private long untilBatchDeadline() {
+        var now = System.nanoTime();
+        var wait = Long.MAX_VALUE;
+        for (var batch : this.batches.values())
+            wait = Math.min(wait, Math.max(1, batch.deadline - now));
+        return wait;
+    }
+
+    /**
+     * Removes a request from the coalescing index.
+     * Must be called while holding the lock.
+     *
+     * @param delivery The request.
+     */
+    private void forget(Delivery delivery) {
+        if (!delivery.batched)
+            this.queued.remove(delivery.events.get(0).waypoint(), delivery);
+    }
+
+    /**
+     * Performs the HTTP request.
+     * Requests which fail are stored in the outbox to be retried;
+     * they may then arrive after newer events, which their sequence number shows.
+     *
+     * @param delivery The request to send.
+     */
+    private void send(Delivery delivery) {
+        var url = delivery.url();
+        var body = delivery.batched ?
+                delivery.body().getBytes(StandardCharsets.UTF_8) : null;
+        if (WaypointDispatcher.deliver(url, body)) return;
+
+        this.failed.addAndGet(delivery.events.size());
+        WirelessRedstone.getOutbox().add(url, body);
+    }
+
+    /**
+     * Sends a waypoint request.
+     * Single events are sent as a GET, batches as a POST with a JSON array.
+     * Requests to a host whose breaker is open fail without being sent.
+     *
+     * @param url The URL of the request.
+     * @param body The body of a POST, or null for a GET.
+     * @return False if the request should be retried.
+     */
+    static boolean deliver(HttpUrl url, byte[] body) {
+        // Fail fast if the host is down.
+        var breakers = WirelessRedstone.getBreakers();
+        var permit = breakers.acquire(url);
+        if (permit == null) return false;
+
+        // Always release the permit, so a failed probe cannot keep the host down.
+        try {
+            var request = new Request.Builder().url(url);
+            if (body != null)
+                request.post(RequestBody.create(body, JSON));
+
+            var call = WirelessRedstone.getHttpClient().newCall(request.build());
+            call.timeout().timeout(permit.getTimeout(), TimeUnit.MILLISECONDS);
+
+            var metrics = WirelessRedstone.getMetrics();
+            var started = metrics.webhookStarted();
+            try (var response = call.execute()) {
+                metrics.webhookFinished(started, response.code());
+
+                // Server errors count against the host.
+                if (response.code() >= 500) breakers.failed(permit, false);
+                else breakers.succeeded(permit, System.nanoTime() - started);
+
+                // Retry server errors and rate limits.
+                return response.code() < 500 && response.code() != 429;
+            } catch (IOException exception) {
+                metrics.webhookFinished(started, -1);
+                breakers.failed(permit, exception instanceof InterruptedIOException);
+                return false;
+            }
+        } finally {
+            breakers.release(permit);
+        }
+    }
+
+    /**
+     * A change of a waypoint's lamp.
+     *
+     * @param waypoint The UUID of the waypoint.
+     * @param lit Whether the lamp is lit.
+     * @param sequence The sequence number of the change.
+     * @param tick The scheduler tick of the change.
+     * @param timestamp The time of the change, in milliseconds.
+     */
+    private record Event(UUID waypoint, boolean lit, long sequence, long tick, long timestamp) { }
+
+    /**
+     * A queued waypoint request.
+     */
+    private static final class Delivery {
+        private final HttpUrl url;
+        private final boolean batched;
+        private final List<Event> events = new ArrayList<>(1);
+        private long deadline;
+
+        Delivery(HttpUrl url, boolean batched) {
+            this.url = url;
+            this.batched = batched;
+        }
+
+        String host() {
+            return this.url.host();
+        }
+
+        /**
+         * @return The waypoint of a single event, or the URL of a batch.
+         */
+        Object lane() {
+            return this.batched ? this.url : this.events.get(0).waypoint();
+        }
+
+        /**
+         * @return The URL to request; single events add their sequence number and state.
+         */
+        HttpUrl url() {
+            if (this.batched) return this.url;
+
+            var event = this.events.get(0);
+            return this.url.newBuilder()
+                    .addQueryParameter("sequence", Long.toString(event.sequence()))
+                    .addQueryParameter("state", Boolean.toString(event.lit()))
+                    .build();
+        }
+
+        /**
+         * @return The events as a JSON array.
+         */
+        String body() {
+            var body = new StringBuilder(this.events.size() * 100).append('[');
+            for (var i = 0; i < this.events.size(); i++) {
+                var event = this.events.get(i);
+                if (i > 0) body.append(',');
+
+                body.append("{\"waypoint\":\"").append(event.waypoint())
+                        .append("\",\"state\":").append(event.lit())
+                        .append(",\"sequence\":").append(event.sequence())
+                        .append(",\"tick\":").append(event.tick())
+                        .append(",\"timestamp\":").append(event.timestamp())
+                        .append('}');
+            }
+
+            return body.append(']').toString();
+        }
+    }
+}
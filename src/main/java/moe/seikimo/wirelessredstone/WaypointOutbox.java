@@ -0,0 +1,376 @@
+package moe.seikimo.wirelessredstone;
+
+import lombok.Getter;
+import okhttp3.HttpUrl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable store of waypoint requests which failed to send.
+ * Requests are kept in a fixed-size, memory-mapped ring file and retried in order
+ * with exponential backoff. Requests which fail too often are moved to a dead-letter file.
+ * Requests which are not due yet, or whose host's breaker is open, are moved behind
+ * the others, so one host which is down does not hold up retries to the rest.
+ *
+ * Ring header: magic, head offset, tail offset.
+ * Each record: [int length][int attempts][long due][short url length][url][int body length][body].
+ * A length of -1 marks the end of the ring.
+ */
+public final class WaypointOutbox {
+    private static final int MAGIC = 0x57524F31; // 'WRO1'
+    private static final int HEADER_SIZE = 24;
+    private static final int RECORD_OVERHEAD = 22;
+    private static final int WRAP = -1;
+
+    private final File file, deadLetters;
+    private final RedstoneConfig.Outbox config;
+
+    @Getter private final AtomicLong retried = new AtomicLong();
+    @Getter private final AtomicLong dead = new AtomicLong();
+    @Getter private final AtomicLong dropped = new AtomicLong();
+
+    private MappedByteBuffer ring;
+    private FileChannel deadChannel;
+    private Thread thread;
+    private int capacity;
+    private long head, tail;
+    private boolean running = false;
+
+    /** Bytes of records moved back since one was last sent, and when the first of them is due. */
+    private long skipped = 0, nextDue = Long.MAX_VALUE;
+
+    public WaypointOutbox(File file, File deadLetters, RedstoneConfig.Outbox config) {
+        this.file = file;
+        this.deadLetters = deadLetters;
+        this.config = config;
+    }
+
+    /**
+     * Maps the ring file and starts retrying stored requests.
+     * A ring of a different size is discarded.
+     */
+    public synchronized void open() throws IOException {
+        var size = HEADER_SIZE + Math.max(4096, this.config.getSize());
+        try (var channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var fresh = channel.size() != size;
+            if (fresh && channel.size() > HEADER_SIZE)
+                WirelessRedstone.getLogger().warn("Discarding the outbox since its size changed.");
+
+            this.ring = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            this.capacity = size - HEADER_SIZE;
+
+            if (fresh || this.ring.getInt(0) != MAGIC) {
+                this.ring.putInt(0, MAGIC);
+                this.store(0, 0);
+            } else {
+                this.head = this.ring.getLong(8);
+                this.tail = this.ring.getLong(16);
+            }
+        }
+
+        this.deadChannel = FileChannel.open(this.deadLetters.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        this.running = true;
+        this.thread = new Thread(this::run, "Waypoint Outbox");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stores a failed request to be retried.
+     * The request is dropped if the ring is full.
+     *
+     * @param url The URL of the request.
+     * @param body The body of a POST, or null for a GET.
+     */
+    public synchronized void add(HttpUrl url, byte[] body) {
+        if (this.ring == null || !this.running) {
+            this.dropped.incrementAndGet();
+            return;
+        }
+
+        var address = url.toString().getBytes(StandardCharsets.UTF_8);
+        var length = body == null ? 0 : body.length;
+        if (!this.append(address, body, length, 0, this.due(0))) {
+            this.dropped.incrementAndGet();
+            return;
+        }
+
+        this.notifyAll();
+    }
+
+    /**
+     * Stops retrying and waits for the request being retried to finish.
+     * The retry thread writes the ring to disk and closes the dead-letter file as it exits.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (this.ring == null) return;
+
+            this.running = false;
+            this.notifyAll();
+            thread = this.thread;
+        }
+
+        // Requests time out, so this does not wait forever.
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The amount of bytes used by stored requests.
+     */
+    public synchronized long size() {
+        return this.tail - this.head;
+    }
+
+    /**
+     * Run by the retry thread.
+     */
+    private void run() {
+        try {
+            this.retry();
+        } finally {
+            synchronized (this) {
+                this.ring.force();
+                try {
+                    this.deadChannel.close();
+                } catch (IOException exception) {
+                    WirelessRedstone.getLogger().error("Failed to close the dead-letter file.", exception);
+                }
+            }
+        }
+    }
+
+    /**
+     * Retries stored requests until the outbox is closed.
+     */
+    private void retry() {
+        while (true) {
+            byte[] address, body;
+            int attempts;
+            HttpUrl url;
+
+            synchronized (this) {
+                if (!this.running) return;
+
+                var position = this.peek();
+                if (position == -1) {
+                    this.await(0);
+                    continue;
+                }
+
+                // Copy the request out of the ring.
+                var due = this.ring.getLong(position + 8);
+                attempts = this.ring.getInt(position + 4);
+                address = new byte[this.ring.getShort(position + 16) & 0xFFFF];
+                this.ring.get(position + 18, address);
+                var length = this.ring.getInt(position + 18 + address.length);
+                body = length == 0 ? null : new byte[length];
+                if (body != null) this.ring.get(position + 22 + address.length, body);
+                url = HttpUrl.parse(new String(address, StandardCharsets.UTF_8));
+
+                // Move the request back if it cannot be sent yet.
+                var now = System.currentTimeMillis();
+                var wait = due - now;
+                if (wait <= 0 && url != null && WirelessRedstone.getBreakers().isOpen(url))
+                    wait = this.config.getBaseDelay();
+                if (wait > 0) {
+                    this.skip(position, address, body, length, attempts, due, now + wait);
+                    continue;
+                }
+
+                this.skipped = 0;
+                this.nextDue = Long.MAX_VALUE;
+            }
+
+            var delivered = url == null || WaypointDispatcher.deliver(url, body);
+            this.retried.incrementAndGet();
+
+            synchronized (this) {
+                this.pop(this.peek());
+                if (delivered) continue;
+
+                // Give up on requests which failed too often.
+                var length = body == null ? 0 : body.length;
+                if (++attempts >= this.config.getMaxAttempts()) {
+                    this.bury(address, body, length, attempts);
+                    continue;
+                }
+
+                // Move the request to the back of the ring.
+                if (!this.append(address, body, length, attempts, this.due(attempts)))
+                    this.dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Moves a record which cannot be sent yet behind the others.
+     * Once every record was moved, or if there is no room to move one, waits until the first is due.
+     * Must be called while holding the lock.
+     *
+     * @param position The position of the record.
+     * @param ready When the record can be sent, in milliseconds.
+     */
+    private void skip(int position, byte[] address, byte[] body, int length, int attempts, long due, long ready) {
+        var size = RECORD_OVERHEAD + address.length + length;
+        this.nextDue = Math.min(this.nextDue, ready);
+
+        // Moving a record needs room for it before the old copy is removed.
+        if (this.skipped >= this.tail - this.head || this.capacity - (this.tail - this.head) < size) {
+            this.await(Math.max(1, this.nextDue - System.currentTimeMillis()));
+            this.skipped = 0;
+            this.nextDue = Long.MAX_VALUE;
+            return;
+        }
+
+        this.pop(position);
+        this.append(address, body, length, attempts, due);
+        this.skipped += size;
+    }
+
+    /**
+     * Finds the oldest record, skipping the end of the ring.
+     * Must be called while holding the lock.
+     *
+     * @return The position of the record in the file, or -1 if the ring is empty.
+     */
+    private int peek() {
+        if (this.head == this.tail) return -1;
+
+        var offset = (int) (this.head % this.capacity);
+        if (this.capacity - offset < 4 || this.ring.getInt(HEADER_SIZE + offset) == WRAP) {
+            this.head += this.capacity - offset;
+            this.store(this.head, this.tail);
+            return this.peek();
+        }
+
+        return HEADER_SIZE + offset;
+    }
+
+    /**
+     * Removes the oldest record.
+     * Must be called while holding the lock.
+     *
+     * @param position The position of the record.
+     */
+    private void pop(int position) {
+        this.head += 4 + this.ring.getInt(position);
+        this.store(this.head, this.tail);
+    }
+
+    /**
+     * Writes a record at the end of the ring.
+     * Must be called while holding the lock.
+     *
+     * @return Whether there was room for the record.
+     */
+    private boolean append(byte[] address, byte[] body, int length, int attempts, long due) {
+        var size = RECORD_OVERHEAD + address.length + length;
+        if (size > this.capacity || address.length > 0xFFFF) return false;
+
+        // Records never wrap; skip to the start of the ring instead.
+        var offset = (int) (this.tail % this.capacity);
+        var skip = this.capacity - offset < size ? this.capacity - offset : 0;
+        if (this.capacity - (this.tail - this.head) < skip + size) return false;
+
+        if (skip > 0) {
+            if (skip >= 4) this.ring.putInt(HEADER_SIZE + offset, WRAP);
+            offset = 0;
+        }
+
+        var position = HEADER_SIZE + offset;
+        this.ring.putInt(position, size - 4);
+        this.ring.putInt(position + 4, attempts);
+        this.ring.putLong(position + 8, due);
+        this.ring.putShort(position + 16, (short) address.length);
+        this.ring.put(position + 18, address);
+        this.ring.putInt(position + 18 + address.length, length);
+        if (length > 0) this.ring.put(position + 22 + address.length, body, 0, length);
+
+        this.tail += skip + size;
+        this.store(this.head, this.tail);
+        return true;
+    }
+
+    /**
+     * Appends a request to the dead-letter file, unless it is full.
+     * Uses the same record layout as the ring.
+     * Must be called while holding the lock.
+     */
+    private void bury(byte[] address, byte[] body, int length, int attempts) {
+        this.dead.incrementAndGet();
+
+        var record = ByteBuffer.allocate(RECORD_OVERHEAD + address.length + length)
+                .putInt(RECORD_OVERHEAD - 4 + address.length + length)
+                .putInt(attempts)
+                .putLong(System.currentTimeMillis())
+                .putShort((short) address.length)
+                .put(address)
+                .putInt(length);
+        if (length > 0) record.put(body, 0, length);
+
+        try {
+            if (this.deadChannel.size() + record.capacity() > this.config.getDeadLetterSize()) {
+                this.dropped.incrementAndGet();
+                return;
+            }
+
+            this.deadChannel.write(record.flip());
+        } catch (IOException exception) {
+            WirelessRedstone.getLogger().error("Failed to write a dead letter.", exception);
+        }
+    }
+
+    /**
+     * Calculates when a request should be retried.
+     * Uses exponential backoff with up to half of the delay added as jitter.
+     *
+     * @param attempts The amount of failed retries.
+     * @return The time of the next attempt, in milliseconds.
+     */
+    private long due(int attempts) {
+        var delay = Math.min(this.config.getMaxDelay(),
+                this.config.getBaseDelay() << Math.min(attempts, 30));
+        var jitter = ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        return System.currentTimeMillis() + delay / 2 + jitter;
+    }
+
+    private void store(long head, long tail) {
+        // Rebase the offsets so they never overflow.
+        if (head >= this.capacity) {
+            var base = head - head % this.capacity;
+            head -= base;
+            tail -= base;
+            this.head = head;
+            this.tail = tail;
+        }
+
+        this.ring.putLong(8, head);
+        this.ring.putLong(16, tail);
+    }
+
+    private void await(long millis) {
+        try {
+            this.wait(millis);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            this.running = false;
+        }
+    }
+}
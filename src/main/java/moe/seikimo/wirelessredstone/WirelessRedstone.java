@@ -6,9 +6,10 @@ import lombok.Getter;
 import lombok.Setter;
 import net.fabricmc.api.DedicatedServerModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.minecraft.commands.CommandSourceStack;
-import net.minecraft.core.BlockPos;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.world.entity.player.Player;
 import okhttp3.OkHttpClient;
@@ -17,10 +18,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.util.ArrayList;
 
 public final class WirelessRedstone implements DedicatedServerModInitializer {
     @Getter private static final Logger logger
@@ -36,17 +34,45 @@ public final class WirelessRedstone implements DedicatedServerModInitializer {
             = new File(dataDirectory, "endpoints");
     @Getter private static final File waypointsDirectory
             = new File(dataDirectory, "waypoints");
+    @Getter private static final File configFile
+            = new File(dataDirectory, "config.json");
+    @Getter private static final File journalFile
+            = new File(dataDirectory, "components.journal");
+    @Getter private static final File timersFile
+            = new File(dataDirectory, "timers.dat");
+    @Getter private static final File outboxFile
+            = new File(dataDirectory, "outbox.dat");
+    @Getter private static final File deadLettersFile
+            = new File(dataDirectory, "outbox.dead");
+    @Getter private static final File tracesDirectory
+            = new File(dataDirectory, "traces");
 
-    @Getter private static final Map<BlockPos, RedstoneEndpoint> endpoints
-            = new HashMap<>();
-    @Getter private static final Map<BlockPos, RedstoneWaypoint> waypoints
-            = new HashMap<>();
-    @Getter private static final Map<UUID, RedstoneEndpoint> uuidEndpoints
-            = new HashMap<>();
+    @Getter private static final ComponentRegistry registry
+            = new ComponentRegistry();
+    @Getter private static final TickScheduler scheduler
+            = new TickScheduler();
+    @Getter private static final RedstoneMetrics metrics
+            = new RedstoneMetrics();
+    @Getter private static final BlockUpdates blockUpdates
+            = new BlockUpdates();
+
+    @Getter private static RedstoneConfig config;
+    @Getter private static WaypointDispatcher dispatcher;
+    @Getter private static WaypointOutbox outbox;
+    @Getter private static HostBreakers breakers;
+    @Getter private static TickQueue tickQueue;
+    @Getter private static RateLimiter limiter;
+    @Getter private static HotSpots hotSpots;
+    @Getter private static TraceRecorder trace;
+    @Getter private static ComponentJournal journal;
+    @Getter private static StateStream stream;
 
     @Getter private static WirelessRedstone instance;
     @Getter @Setter private static MinecraftServer server;
 
+    /** Whether the server has begun stopping. */
+    private boolean stopping = false;
+
     /**
      * Invoked when the mod is loaded with the server.
      */
@@ -56,11 +82,27 @@ public final class WirelessRedstone implements DedicatedServerModInitializer {
         // Check if the data directory exists.
         if (!dataDirectory.exists() && !dataDirectory.mkdir())
             throw new RuntimeException("Failed to create data directory.");
-        // Make the endpoint and waypoint directories.
-        if (!endpointsDirectory.exists() && !endpointsDirectory.mkdir())
-            throw new RuntimeException("Failed to create endpoints directory.");
-        if (!waypointsDirectory.exists() && !waypointsDirectory.mkdir())
-            throw new RuntimeException("Failed to create waypoints directory.");
+
+        // Load the configuration.
+        WirelessRedstone.config = RedstoneConfig.load(configFile);
+        // Create the component journal.
+        WirelessRedstone.journal = new ComponentJournal(journalFile, config.getStorage());
+        // Start the WebSocket state stream.
+        WirelessRedstone.stream = new StateStream(config.getStream());
+        // Create the outbox for failed waypoint requests.
+        WirelessRedstone.outbox = new WaypointOutbox(outboxFile, deadLettersFile, config.getOutbox());
+        // Create the circuit breakers for waypoint hosts.
+        WirelessRedstone.breakers = new HostBreakers(config.getDispatcher().getBreaker());
+        // Start the waypoint dispatcher.
+        WirelessRedstone.dispatcher = new WaypointDispatcher(config.getDispatcher());
+        // Create the queue for changes made from other threads.
+        WirelessRedstone.tickQueue = new TickQueue(config.getTick());
+        // Create the rate limits for HTTP requests.
+        WirelessRedstone.limiter = new RateLimiter(config.getLimits());
+        // Start counting the busiest components.
+        WirelessRedstone.hotSpots = new HotSpots(config.getTop());
+        // Create the recorder for replaying traffic.
+        WirelessRedstone.trace = new TraceRecorder(tracesDirectory, config.getTrace());
 
         // Add a listener for registering commands.
         CommandRegistrationCallback.EVENT.register((dispatcher, access, env) ->
@@ -71,6 +113,12 @@ public final class WirelessRedstone implements DedicatedServerModInitializer {
         // Add a listener for player disconnects.
         ServerPlayConnectionEvents.DISCONNECT.register((handler, server) ->
                 this.onPlayerDisconnect(handler.getPlayer()));
+        // Add a listener for the end of each server tick.
+        ServerTickEvents.END_SERVER_TICK.register(server ->
+                this.onServerTick());
+        // Add a listener for when the server begins stopping.
+        ServerLifecycleEvents.SERVER_STOPPING.register(server ->
+                this.onServerStopping());
     }
 
     /**
@@ -78,15 +126,55 @@ public final class WirelessRedstone implements DedicatedServerModInitializer {
      */
     public void onServerStart() {
         // Load all endpoints & waypoints.
-        new Thread(() -> {
-            this.loadEndpoints();
-            this.loadWaypoints();
-        }).start();
+        new Thread(this::loadComponents).start();
+        // Retry waypoint requests which failed in the last run.
+        try {
+            WirelessRedstone.getOutbox().open();
+        } catch (IOException exception) {
+            WirelessRedstone.getLogger().error("Failed to open the waypoint outbox.", exception);
+        }
+        // Record traffic if enabled.
+        if (config.getTrace().isEnabled()) {
+            try {
+                WirelessRedstone.getTrace().start();
+            } catch (IOException exception) {
+                WirelessRedstone.getLogger().error("Failed to start recording traffic.", exception);
+            }
+        }
 
         // Apply HTTP server routes.
         this.applyRoutes();
         // Start the HTTP server.
-        WirelessRedstone.getJavalin().start(25564);
+        WirelessRedstone.getJavalin().start(config.getHttp().getPort());
+    }
+
+    /**
+     * Invoked at the end of every server tick.
+     */
+    public void onServerTick() {
+        // Run due timers.
+        var scheduler = WirelessRedstone.getScheduler();
+        scheduler.advance();
+        // Save endpoint timers now and then, so a crash loses few of them.
+        if (scheduler.getTick() % Math.max(1, config.getTick().getTimerSaveInterval()) == 0)
+            scheduler.saveLater(timersFile);
+        // Apply changes queued by the HTTP server.
+        WirelessRedstone.getTickQueue().drain();
+        // Apply the block changes made this tick.
+        WirelessRedstone.getBlockUpdates().apply();
+        // Publish the states for read-only routes.
+        WirelessRedstone.getRegistry().getStates()
+                .publish(WirelessRedstone.getScheduler().getTick());
+    }
+
+    /**
+     * Invoked when the server begins stopping, before players are disconnected and levels are saved.
+     * No more ticks run after this, so work spread over ticks and block changes are applied now.
+     */
+    public void onServerStopping() {
+        this.stopping = true;
+        WirelessRedstone.getTickQueue().finish();
+        WirelessRedstone.getBlockUpdates().apply();
     }
 
     /**
@@ -95,50 +183,82 @@ public final class WirelessRedstone implements DedicatedServerModInitializer {
     public void onServerStop() {
         // Stop the HTTP server.
         WirelessRedstone.getJavalin().close();
+        WirelessRedstone.getStream().close();
+        WirelessRedstone.getTrace().stop();
+        // Fail any changes which were not applied.
+        WirelessRedstone.getTickQueue().close();
+        // Save pending timers.
+        try {
+            WirelessRedstone.getScheduler().save(timersFile);
+        } catch (IOException exception) {
+            WirelessRedstone.getLogger().error("Failed to save timers.", exception);
+        }
+        // Send any queued waypoint requests.
+        WirelessRedstone.getDispatcher().shutdown();
+        WirelessRedstone.getOutbox().close();
+        // Write pending changes and close the component journal.
+        WirelessRedstone.getJournal().close();
     }
 
     /**
      * Applies routes to the Javalin instance.
      */
-    private void applyRoutes() {
+    void applyRoutes() {
         var app = WirelessRedstone.getJavalin();
 
         app.get("/", RedstoneRouting::indexRoute);
+        app.get("/metrics", RedstoneRouting::metricsRoute);
+        app.get("/state", RedstoneRouting::statesRoute);
+        app.get("/registry", RedstoneRouting::registryRoute);
+        app.get("/top", RedstoneRouting::topRoute);
         app.get("/{id}", RedstoneRouting::toggleRoute);
+        app.post("/batch", RedstoneRouting::batchRoute);
+        app.get("/{id}/state", RedstoneRouting::stateRoute);
+        app.get("/{id}/tick", RedstoneRouting::tickRoute);
+        app.get("/{id}/pulse/{ticks}", RedstoneRouting::pulseRoute);
+        app.get("/{id}/schedule/{state}/{tick}", RedstoneRouting::scheduleRoute);
+        app.delete("/{id}/timer/{timer}", RedstoneRouting::cancelRoute);
+        app.ws("/ws", WirelessRedstone.getStream()::configure);
     }
 
     /**
-     * Loads all redstone endpoints on the disk.
+     * Loads all redstone endpoints & waypoints on the disk.
+     * Components in the old per-file directories are moved into the journal.
      */
-    private void loadEndpoints() {
-        var files = WirelessRedstone.getEndpointsDirectory().listFiles();
-        if (files == null) throw new RuntimeException("Failed to list files.");
+    private void loadComponents() {
+        var journal = WirelessRedstone.getJournal();
+        var metrics = WirelessRedstone.getMetrics();
 
-        for (var file : files) {
-            try {
-                var endpoint = RedstoneEndpoint.of(Files.readString(file.toPath()));
-                WirelessRedstone.getEndpoints().put(endpoint.getPosition(), endpoint);
-                WirelessRedstone.getUuidEndpoints().put(endpoint.getUuid(), endpoint);
-            } catch (IOException ignored) {
-                WirelessRedstone.getLogger().error("Failed to load endpoint '{}'.", file.getName());
-            }
-        }
-    }
+        try {
+            var started = System.nanoTime();
+            var components = new ArrayList<>(journal.open());
+            metrics.setJournalLoadTime(System.nanoTime() - started);
 
-    /**
-     * Loads all redstone endpoints on the disk.
-     */
-    private void loadWaypoints() {
-        var files = WirelessRedstone.getWaypointsDirectory().listFiles();
-        if (files == null) throw new RuntimeException("Failed to list files.");
+            // Migrate from the old storage layout.
+            started = System.nanoTime();
+            if (endpointsDirectory.isDirectory())
+                components.addAll(journal.migrate(endpointsDirectory, RedstoneEndpoint::of));
+            if (waypointsDirectory.isDirectory())
+                components.addAll(journal.migrate(waypointsDirectory, RedstoneWaypoint::of));
+            metrics.setMigrationTime(System.nanoTime() - started);
 
-        for (var file : files) {
-            try {
-                var waypoint = RedstoneWaypoint.of(Files.readString(file.toPath()));
-                WirelessRedstone.getWaypoints().put(waypoint.getPosition(), waypoint);
-            } catch (IOException ignored) {
-                WirelessRedstone.getLogger().error("Failed to load waypoint '{}'.", file.getName());
+            var registry = WirelessRedstone.getRegistry();
+            for (var component : components) {
+                if (component.getWorld() == null) {
+                    WirelessRedstone.getLogger().warn("Skipping component '{}' in an unknown level.", component.getUuid());
+                    continue;
+                }
+
+                if (component instanceof RedstoneEndpoint endpoint)
+                    registry.add(endpoint);
+                else if (component instanceof RedstoneWaypoint waypoint)
+                    registry.add(waypoint);
             }
+
+            // Restore timers from the last run.
+            WirelessRedstone.getScheduler().load(timersFile);
+        } catch (IOException exception) {
+            WirelessRedstone.getLogger().error("Failed to load the component journal.", exception);
         }
     }
 
@@ -157,10 +277,25 @@ public final class WirelessRedstone implements DedicatedServerModInitializer {
      * @param player The player.
      */
     private void onPlayerJoin(Player player) {
+        var tickQueue = WirelessRedstone.getTickQueue();
+        tickQueue.cancel(player.getUUID());
+
         // Load all endpoints for the player.
-        WirelessRedstone.getEndpoints().values().stream()
-                .filter(endpoint -> endpoint.getOwner().equals(player.getUUID()))
-                .forEach(endpoint -> endpoint.load(player));
+        var registry = WirelessRedstone.getRegistry();
+        tickQueue.spread(player.getUUID(), registry.getEndpoints(player.getUUID()), endpoint -> {
+            if (WirelessRedstone.isRegistered(endpoint)) endpoint.load(player);
+        });
+    }
+
+    /**
+     * Checks if an endpoint is still in the registry.
+     * Work spread over several ticks skips endpoints destroyed or moved since it was queued.
+     *
+     * @param endpoint The endpoint.
+     * @return Whether the registry still holds this endpoint.
+     */
+    private static boolean isRegistered(RedstoneEndpoint endpoint) {
+        return WirelessRedstone.getRegistry().getEndpoint(endpoint.getUuid()) == endpoint;
     }
 
     /**
@@ -169,9 +304,18 @@ public final class WirelessRedstone implements DedicatedServerModInitializer {
      * @param player The player.
      */
     private void onPlayerDisconnect(Player player) {
+        var tickQueue = WirelessRedstone.getTickQueue();
+        tickQueue.cancel(player.getUUID());
+
         // Unload all endpoints for the player.
-        WirelessRedstone.getEndpoints().values().stream()
-                .filter(endpoint -> endpoint.getOwner().equals(player.getUUID()))
-                .forEach(RedstoneEndpoint::unload);
+        var registry = WirelessRedstone.getRegistry();
+        tickQueue.spread(player.getUUID(), registry.getEndpoints(player.getUUID()), endpoint -> {
+            if (WirelessRedstone.isRegistered(endpoint)) endpoint.unload();
+        });
+        // The levels are saved without another tick while stopping.
+        if (this.stopping) {
+            tickQueue.finish();
+            WirelessRedstone.getBlockUpdates().apply();
+        }
     }
 }